@@ -0,0 +1,86 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projectswg.launchpad.service.Manager;
+
+/*
+ * Manager.getFileChecksum on a small file, a typical tre and a large tre
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChecksumBenchmark
+{
+	@Param({ "65536", "16777216", "104857600" })
+	public int size;
+	
+	private File file;
+	
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		file = File.createTempFile("pswg-bench", ".tre");
+		byte[] buffer = new byte[1024 * 1024];
+		Random random = new Random(size);
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			for (int written = 0; written < size; written += buffer.length) {
+				random.nextBytes(buffer);
+				fos.write(buffer, 0, Math.min(buffer.length, size - written));
+			}
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		file.delete();
+	}
+	
+	@Benchmark
+	public String checksum()
+	{
+		return Manager.getFileChecksum(file);
+	}
+}
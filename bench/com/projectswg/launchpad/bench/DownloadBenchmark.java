@@ -0,0 +1,110 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projectswg.launchpad.service.Manager;
+import com.projectswg.launchpad.service.UpdateService;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * UpdateService's copy loop against a loopback stand-in for the update server
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark
+{
+	@Param({ "1048576", "33554432" })
+	public int size;
+	
+	private HttpServer server;
+	private URL url;
+	private File file;
+	
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+		
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/files/", (exchange) -> {
+			exchange.sendResponseHeaders(200, payload.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(payload);
+			}
+		});
+		server.start();
+		
+		url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/files/data_bench_00.tre");
+		file = File.createTempFile("pswg-bench", ".tre");
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		server.stop(0);
+		file.delete();
+	}
+	
+	@Benchmark
+	public byte[] download() throws IOException, NoSuchAlgorithmException
+	{
+		MessageDigest md = MessageDigest.getInstance("md5");
+		HttpURLConnection urlConnection = (HttpURLConnection)url.openConnection();
+		try (InputStream is = urlConnection.getInputStream();
+			 FileOutputStream fos = new FileOutputStream(file, false)) {
+			UpdateService.transfer(is, fos, md, new byte[Manager.MAX_BUFFER_SIZE], () -> false, (bytes) -> {});
+		}
+		return md.digest();
+	}
+}
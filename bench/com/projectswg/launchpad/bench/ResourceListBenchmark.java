@@ -0,0 +1,99 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.bench;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projectswg.launchpad.model.Resource;
+import com.projectswg.launchpad.service.Manager;
+import com.projectswg.launchpad.service.PswgScanService;
+
+/*
+ * resource list decryption and parsing, the first thing every scan does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResourceListBenchmark
+{
+	private static final String KEY = "eKgeg75J3pTBURgh";
+	
+	@Param({ "100", "1000" })
+	public int resources;
+	
+	private List<String> lines;
+	private byte[] encrypted;
+	
+	
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Security.addProvider(new BouncyCastleProvider());
+		
+		lines = new ArrayList<>();
+		lines.add("" + resources);
+		lines.add("" + System.currentTimeMillis() / 1000);
+		lines.add("BEGIN");
+		for (int i = 0; i < resources; i++)
+			lines.add(String.format("%s %032x %s data_bench_%05d.tre", i % 3, i, 1000 + i * 4096L, i));
+		lines.add("END");
+		
+		encrypted = Manager.encrypt(String.join("\r\n", lines) + "\r\n", KEY);
+	}
+	
+	@Benchmark
+	public ArrayList<Resource> parse()
+	{
+		return PswgScanService.parseResourceList(lines);
+	}
+	
+	@Benchmark
+	public String decrypt()
+	{
+		return PswgScanService.decrypt(encrypted, KEY);
+	}
+	
+	@Benchmark
+	public ArrayList<Resource> decryptAndParse()
+	{
+		return PswgScanService.parseResourceList(Arrays.asList(PswgScanService.decrypt(encrypted, KEY).split("\r\n")));
+	}
+}
@@ -167,7 +167,7 @@ public class ProjectSWG extends Application
 		((MainController)controllers.get("main")).init(this);
 		
 		LogController logController = (LogController)controllers.get("log");
-		logController.init(debugStage);
+		logController.init(this, debugStage);
 		debugStage.setScene(new Scene(logController.getRoot()));
 		
 		// games
@@ -210,9 +210,13 @@ public class ProjectSWG extends Application
 	public static void log(String text)
 	{
 		System.out.println(text);
-		Platform.runLater(() -> {
-			DEBUG.set((new Date()).toString() + ": " + text);
-		});
+		try {
+			Platform.runLater(() -> {
+				DEBUG.set((new Date()).toString() + ": " + text);
+			});
+		} catch (IllegalStateException e1) {
+			// no toolkit outside the app, e.g. unit tests, stdout is enough
+		}
 	}
 	
 	public static FxmlController loadFxml(String theme, String fxml)
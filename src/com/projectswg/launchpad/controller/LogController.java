@@ -24,6 +24,7 @@ import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ResourceBundle;
 import com.projectswg.launchpad.ProjectSWG;
+import com.projectswg.launchpad.service.Manager;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
@@ -42,7 +43,7 @@ public class LogController implements FxmlController
 	private VBox logRoot;
 	
 	@FXML
-	private Button clearButton, saveAsButton, findButton;
+	private Button clearButton, saveAsButton, statsButton, findButton;
 	
 	@FXML
 	private TextArea outputTextArea;
@@ -70,7 +71,7 @@ public class LogController implements FxmlController
 		this.stage.show();
 	}
 	
-	public void init(Stage stage)
+	public void init(ProjectSWG pswg, Stage stage)
 	{
 		this.stage = stage;
 		
@@ -96,6 +97,18 @@ public class LogController implements FxmlController
 			}
 		});
 		
+		statsButton.setOnAction((e) -> {
+			Manager manager = pswg.getManager();
+			if (manager.getScanStats() == null && manager.getUpdateStats() == null) {
+				outputTextArea.appendText("No scan or update stats yet\n");
+				return;
+			}
+			if (manager.getScanStats() != null)
+				outputTextArea.appendText(manager.getScanStats().summary() + "\n");
+			if (manager.getUpdateStats() != null)
+				outputTextArea.appendText(manager.getUpdateStats().summary() + "\n");
+		});
+		
 		findTextField.textProperty().addListener((observable, oldValue, newValue) -> {
 			lastFind = 0;
 			findTextField.getStyleClass().remove("fail");
@@ -20,7 +20,9 @@
 package com.projectswg.launchpad.controller;
 
 import java.net.URL;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.TreeMap;
 import com.projectswg.launchpad.ProjectSWG;
 import com.projectswg.launchpad.extras.TREFix;
 import com.projectswg.launchpad.model.Instance;
@@ -33,6 +35,7 @@ import javafx.animation.ScaleTransition;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.collections.ListChangeListener;
+import javafx.collections.MapChangeListener;
 import javafx.collections.ObservableList;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
@@ -223,6 +226,7 @@ public class MainController implements FxmlController
 				progressIndicator.setVisible(true);
 				if (manager.getUpdateService().getProgress() != -1)
 					showProgressBar();
+				playButton.setDisable(!manager.getLaunchable().get());
 				optionsButton.setDisable(true);
 				extrasButton.setDisable(true);
 				break;
@@ -260,14 +264,30 @@ public class MainController implements FxmlController
 			}
 		});
 		
+		// play while the rest of the scan or update runs
+		manager.getLaunchable().addListener((observable, oldValue, newValue) -> {
+			int state = manager.getState().get();
+			if (state == Manager.STATE_PSWG_SCANNING || state == Manager.STATE_UPDATING)
+				playButton.setDisable(!newValue);
+		});
+		
+		// already on the fx thread, published at a fixed rate by the update task
 		manager.getUpdateService().progressProperty().addListener((observable, oldValue, newValue) -> {
-			Platform.runLater(() -> {
-				if (oldValue.intValue() == -1)
-					showProgressBar();
-				progressBar.setProgress(newValue.doubleValue());
-				if (newValue.intValue() == -1)
-					hideProgressBar();
-			});
+			if (oldValue.intValue() == -1)
+				showProgressBar();
+			progressBar.setProgress(newValue.doubleValue());
+			if (newValue.intValue() == -1)
+				hideProgressBar();
+		});
+		
+		// the files in flight and how far each has got
+		Tooltip progressTooltip = new Tooltip();
+		progressBar.setTooltip(progressTooltip);
+		manager.getUpdateService().getFiles().addListener((MapChangeListener<String, Long>) (change) -> {
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<String, Long> file : new TreeMap<>(manager.getUpdateService().getFiles()).entrySet())
+				sb.append(String.format("%s: %.2f MB\n", file.getKey(), file.getValue() / 1024.0 / 1024));
+			progressTooltip.setText(sb.toString().trim());
 		});
 
 		pswg.getInstances().addListener(instanceListener);
@@ -85,10 +85,14 @@ public class SettingsController implements ModalComponent
 	@FXML
 	private TextField updateServerFileListTextField, updateServerEncryptionKeyTextField;
 	@FXML
+	private TextField downloadLimitTextField;
+	@FXML
 	private CheckBox closeAfterLaunchCheckBox, captureCheckBox, debugCheckBox, updateServerLockedCheckBox;
 	@FXML
 	private CheckBox loginServerLockedCheckBox, openOnLaunchCheckBox, soundCheckBox, translateCheckBox;
 	@FXML
+	private CheckBox adaptiveLimitCheckBox;
+	@FXML
 	private ComboBox<String> loginServerComboBox, themeComboBox, updateServerComboBox;
 	@FXML
 	private Pane pingDisplayPane, pswgFolderDisplayPane;
@@ -280,6 +284,25 @@ public class SettingsController implements ModalComponent
 			((LogController)mainController.getPswg().getControllers().get("log")).show();
 		});
 		
+		// download limit, running transfers pick it up
+		downloadLimitTextField.setText("" + ProjectSWG.PREFS.getInt("download_limit", 0));
+		downloadLimitTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+			try {
+				int limit = newValue.equals("") ? 0 : Integer.parseInt(newValue);
+				if (limit < 0)
+					throw new NumberFormatException();
+				ProjectSWG.PREFS.putInt("download_limit", limit);
+				downloadLimitTextField.getStyleClass().remove("fail");
+			} catch (NumberFormatException e1) {
+				if (!downloadLimitTextField.getStyleClass().contains("fail"))
+					downloadLimitTextField.getStyleClass().add("fail");
+			}
+		});
+		adaptiveLimitCheckBox.setSelected(ProjectSWG.PREFS.getBoolean("adaptive_limit", true));
+		adaptiveLimitCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+			ProjectSWG.PREFS.putBoolean("adaptive_limit", newValue);
+		});
+		
 		// theme
 		refreshThemesButton.setOnMouseEntered(buttonHover);
 		refreshThemesButton.setOnMouseClicked(buttonPress);
@@ -19,6 +19,8 @@
 
 package com.projectswg.launchpad.model;
 
+import java.util.ArrayList;
+
 public class Resource
 {
 	// strictness
@@ -32,6 +34,9 @@ public class Resource
 	private int strictness;
 	private long size;
 	private boolean dlFlag;
+	// corrupt blocks, when only part of the file needs to be fetched
+	private ArrayList<Integer> repairBlocks;
+	private int repairBlockSize;
 	
 	public Resource(String name, long size, String checksum, int strictness)
 	{
@@ -40,6 +45,7 @@ public class Resource
 		this.checksum = checksum;
 		this.strictness = strictness;
 		this.dlFlag = false;
+		this.repairBlocks = null;
 	}
 
 	@Override
@@ -77,4 +83,30 @@ public class Resource
 	{
 		this.dlFlag = dlFlag;
 	}
+	
+	public void setRepairBlocks(int repairBlockSize, ArrayList<Integer> repairBlocks)
+	{
+		this.repairBlockSize = repairBlockSize;
+		this.repairBlocks = repairBlocks;
+	}
+	
+	public ArrayList<Integer> getRepairBlocks()
+	{
+		return repairBlocks;
+	}
+	
+	public int getRepairBlockSize()
+	{
+		return repairBlockSize;
+	}
+	
+	public long getDownloadSize()
+	{
+		if (repairBlocks == null)
+			return size;
+		long total = 0;
+		for (int block : repairBlocks)
+			total += Math.min(repairBlockSize, size - (long)block * repairBlockSize);
+		return total;
+	}
 }
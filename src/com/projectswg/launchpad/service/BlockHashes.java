@@ -0,0 +1,164 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * md5 of every fixed size block of a verified resource, kept in a sidecar file
+ * so a corrupt resource can be repaired by fetching only the bad blocks
+ * sidecar format: [block_size] [file_md5], then one block md5 per line
+ */
+public class BlockHashes
+{
+	public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+	public static final String BLOCKS_FOLDER = ".blocks";
+	public static final String BLOCKS_EXTENSION = ".blk";
+	
+	private final int blockSize;
+	private final String checksum;
+	private final String[] hashes;
+	
+	
+	public BlockHashes(int blockSize, String checksum, String[] hashes)
+	{
+		this.blockSize = blockSize;
+		this.checksum = checksum;
+		this.hashes = hashes;
+	}
+	
+	public static boolean isEnabled()
+	{
+		return ProjectSWG.PREFS.getBoolean("block_hashes", false);
+	}
+	
+	/*
+	 * whole file and block digests in a single read, readSize bytes at a time
+	 */
+	public static BlockHashes compute(File file, int blockSize, int readSize)
+	{
+		long size = file.length();
+		int blocks = (int)((size + blockSize - 1) / blockSize);
+		String[] hashes = new String[blocks];
+		MessageDigest whole, block;
+		ByteBuffer buffer = Manager.getHashBuffer(readSize);
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			whole = MessageDigest.getInstance("md5");
+			block = MessageDigest.getInstance("md5");
+			for (int i = 0; i < blocks; i++) {
+				long remaining = Math.min(blockSize, size - (long)i * blockSize);
+				while (remaining > 0) {
+					buffer.clear();
+					if (buffer.capacity() > remaining)
+						buffer.limit((int)remaining);
+					int read = channel.read(buffer);
+					if (read < 0)
+						return null;
+					buffer.flip();
+					ByteBuffer copy = buffer.duplicate();
+					whole.update(buffer);
+					block.update(copy);
+					remaining -= read;
+				}
+				hashes[i] = Manager.toHex(block.digest());
+			}
+		} catch (NoSuchAlgorithmException | IOException e1) {
+			ProjectSWG.log(e1.toString());
+			return null;
+		}
+		
+		return new BlockHashes(blockSize, Manager.toHex(whole.digest()), hashes);
+	}
+	
+	private static File getSidecar(String folder, String name)
+	{
+		return new File(folder + "/" + BLOCKS_FOLDER + "/" + name + BLOCKS_EXTENSION);
+	}
+	
+	public static BlockHashes load(String folder, String name)
+	{
+		File sidecar = getSidecar(folder, name);
+		if (!sidecar.isFile())
+			return null;
+		
+		ArrayList<String> hashes = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(sidecar.toPath())) {
+			String[] header = reader.readLine().split(" ");
+			if (header.length != 2)
+				return null;
+			String line;
+			while ((line = reader.readLine()) != null)
+				hashes.add(line);
+			return new BlockHashes(Integer.parseInt(header[0]), header[1], hashes.toArray(new String[hashes.size()]));
+		} catch (IOException | NullPointerException | NumberFormatException e1) {
+			ProjectSWG.log("Error reading block hashes: " + name);
+			return null;
+		}
+	}
+	
+	public boolean save(String folder, String name)
+	{
+		File sidecar = getSidecar(folder, name);
+		sidecar.getParentFile().mkdirs();
+		try (BufferedWriter writer = Files.newBufferedWriter(sidecar.toPath())) {
+			writer.write(blockSize + " " + checksum);
+			writer.newLine();
+			for (String hash : hashes) {
+				writer.write(hash);
+				writer.newLine();
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Error writing block hashes: " + e1.toString());
+			return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * indexes of the blocks that differ from a known good copy
+	 */
+	public ArrayList<Integer> diff(BlockHashes good)
+	{
+		if (good.blockSize != blockSize || good.hashes.length != hashes.length)
+			return null;
+		ArrayList<Integer> blocks = new ArrayList<>();
+		for (int i = 0; i < hashes.length; i++)
+			if (!hashes[i].equals(good.hashes[i]))
+				blocks.add(i);
+		return blocks;
+	}
+	
+	public int getBlockSize() { return blockSize; }
+	public String getChecksum() { return checksum; }
+	public int getBlockCount() { return hashes.length; }
+}
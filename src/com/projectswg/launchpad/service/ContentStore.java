@@ -0,0 +1,128 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.File;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * content addressed store shared by every update server profile, one hard link per md5
+ * a verified resource is linked in, another profile links it out instead of downloading
+ * an entry is trusted while its size, mtime and file key match the store's own scan cache
+ * layout: [store]/[md5 0..2]/[md5]
+ * opt in with content_store, deleting an install no longer frees space the store still links
+ */
+public class ContentStore
+{
+	public static final String STORE_FOLDER = ".pswg-store";
+	public static final String LINK_EXTENSION = ".link";
+	
+	private final String folder;
+	private final ScanCache cache;
+	
+	
+	public ContentStore(String folder)
+	{
+		this.folder = folder;
+		new File(folder).mkdirs();
+		cache = new ScanCache(folder);
+	}
+	
+	public static boolean isEnabled()
+	{
+		return ProjectSWG.PREFS.getBoolean("content_store", false) && Manager.canLinkFiles();
+	}
+	
+	/*
+	 * content_store_folder overrides the default beside the profile folder,
+	 * the store only works on the same filesystem as the profiles
+	 */
+	public static String getStoreFolder(String pswgFolder)
+	{
+		String folder = ProjectSWG.PREFS.get("content_store_folder", "");
+		if (!folder.equals(""))
+			return folder;
+		if (pswgFolder == null || pswgFolder.equals(""))
+			return null;
+		File parent = new File(pswgFolder).getAbsoluteFile().getParentFile();
+		if (parent == null)
+			return null;
+		return parent.getPath() + "/" + STORE_FOLDER;
+	}
+	
+	private static String getEntryName(String checksum)
+	{
+		return checksum.substring(0, 2) + "/" + checksum;
+	}
+	
+	private boolean isStored(File entry, String name, String checksum)
+	{
+		return checksum.equals(cache.get(name, ScanCache.readAttributes(entry)));
+	}
+	
+	/*
+	 * links a verified file in, unless the store already holds that content
+	 */
+	public boolean add(File file, String checksum)
+	{
+		String name = getEntryName(checksum);
+		File entry = new File(folder + "/" + name);
+		if (isStored(entry, name, checksum))
+			return true;
+		
+		// an entry changed since it was linked in can't be trusted
+		entry.getParentFile().mkdirs();
+		entry.delete();
+		if (!Manager.linkFile(file, entry))
+			return false;
+		cache.put(name, ScanCache.readAttributes(entry), checksum);
+		return true;
+	}
+	
+	/*
+	 * target becomes another link to the stored content, false if the store doesn't hold it
+	 */
+	public boolean link(File target, String checksum, long size)
+	{
+		String name = getEntryName(checksum);
+		File entry = new File(folder + "/" + name);
+		if (entry.length() != size || !isStored(entry, name, checksum))
+			return false;
+		
+		File link = new File(target.getPath() + LINK_EXTENSION);
+		target.getParentFile().mkdirs();
+		link.delete();
+		if (!Manager.linkFile(entry, link))
+			return false;
+		if (!Manager.replaceFile(link, target)) {
+			link.delete();
+			return false;
+		}
+		return true;
+	}
+	
+	public void save()
+	{
+		cache.save();
+	}
+	
+	public String getFolder() { return folder; }
+}
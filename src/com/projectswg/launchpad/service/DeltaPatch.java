@@ -0,0 +1,151 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * rebuilds a new version of a resource from the old one and a streamed delta
+ * delta format: "PSWGDLT1", then ops until E
+ *   C [offset:int64] [length:int64]	copy a range of the old file
+ *   D [length:int32] [bytes]			insert literal bytes
+ *   E									end of delta
+ * all integers are big endian, published as [name].[old_md5].[new_md5].delta
+ */
+public class DeltaPatch
+{
+	public static final byte[] MAGIC = "PSWGDLT1".getBytes(StandardCharsets.US_ASCII);
+	public static final int OP_COPY = 'C';
+	public static final int OP_DATA = 'D';
+	public static final int OP_END = 'E';
+	public static final String DELTA_EXTENSION = ".delta";
+	public static final String PATCH_EXTENSION = ".patch";
+	
+	private final FileChannel base;
+	private long deltaBytes;
+	private long written;
+	
+	
+	public DeltaPatch(FileChannel base)
+	{
+		this.base = base;
+		deltaBytes = 0;
+		written = 0;
+	}
+	
+	public static boolean isEnabled()
+	{
+		return ProjectSWG.PREFS.getBoolean("delta_updates", true);
+	}
+	
+	public static String getDeltaName(String name, String oldChecksum, String newChecksum)
+	{
+		return name + "." + oldChecksum + "." + newChecksum + DELTA_EXTENSION;
+	}
+	
+	/*
+	 * writes the new file into os and md, false if cancelled
+	 * a malformed delta throws, progress receives the bytes written so far
+	 */
+	public boolean apply(InputStream delta, OutputStream os, MessageDigest md, BooleanSupplier cancelled, LongConsumer progress) throws IOException
+	{
+		DataInputStream in = new DataInputStream(delta);
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not a delta");
+		deltaBytes = magic.length;
+		
+		byte[] buffer = new byte[Manager.HASH_BUFFER_SIZE];
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long baseSize = base.size();
+		while (true) {
+			if (cancelled.getAsBoolean())
+				return false;
+			
+			int op = in.read();
+			deltaBytes++;
+			switch (op) {
+			case OP_COPY:
+				long offset = in.readLong();
+				long length = in.readLong();
+				deltaBytes += 16;
+				if (offset < 0 || length < 0 || offset + length > baseSize)
+					throw new IOException("Delta copy out of range");
+				while (length > 0) {
+					wrapped.clear();
+					if (wrapped.capacity() > length)
+						wrapped.limit((int)length);
+					int read = base.read(wrapped, offset);
+					if (read < 0)
+						throw new IOException("Delta base truncated");
+					write(os, md, buffer, read);
+					offset += read;
+					length -= read;
+				}
+				break;
+				
+			case OP_DATA:
+				int remaining = in.readInt();
+				deltaBytes += 4;
+				if (remaining < 0)
+					throw new IOException("Delta data length negative");
+				while (remaining > 0) {
+					int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+					if (read < 0)
+						throw new IOException("Delta truncated");
+					write(os, md, buffer, read);
+					deltaBytes += read;
+					remaining -= read;
+				}
+				break;
+				
+			case OP_END:
+				return true;
+				
+			default:
+				throw new IOException("Unknown delta op: " + op);
+			}
+			progress.accept(written);
+		}
+	}
+	
+	private void write(OutputStream os, MessageDigest md, byte[] buffer, int length) throws IOException
+	{
+		os.write(buffer, 0, length);
+		md.update(buffer, 0, length);
+		written += length;
+	}
+	
+	public long getDeltaBytes() { return deltaBytes; }
+	public long getWritten() { return written; }
+}
@@ -0,0 +1,159 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * every download in progress, so each one resumes after a crash or kill
+ * line format: [name]\t[size]\t[last_modified]\t[ranges]
+ * a checkpoint only records positions whose data was forced to disk first
+ */
+public class DownloadJournal
+{
+	public static final String JOURNAL_FILE = "launchpad.journal";
+	
+	private final String folder;
+	private final File file;
+	private final ConcurrentHashMap<String, DownloadSegments> entries;
+	
+	
+	public DownloadJournal(String folder)
+	{
+		this.folder = folder;
+		file = new File(folder + "/" + JOURNAL_FILE);
+		entries = new ConcurrentHashMap<>();
+		load();
+	}
+	
+	private void load()
+	{
+		if (!file.isFile())
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath())) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 4)
+					continue;
+				DownloadSegments segments = DownloadSegments.decode(fields[3], fields[2], Long.parseLong(fields[1]));
+				if (segments != null)
+					entries.put(fields[0], segments);
+			}
+		} catch (IOException | NumberFormatException e1) {
+			ProjectSWG.log("Error reading download journal: " + e1.toString());
+			entries.clear();
+		}
+		if (entries.size() > 0)
+			ProjectSWG.log(String.format("Download journal: %s partial downloads", entries.size()));
+	}
+	
+	/*
+	 * written to a temp file, synced, then moved over the journal
+	 */
+	public synchronized boolean checkpoint()
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temp)) {
+			Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+			for (Map.Entry<String, DownloadSegments> entry : entries.entrySet()) {
+				DownloadSegments segments = entry.getValue();
+				writer.write(entry.getKey() + "\t" + segments.getSize() + "\t" +
+						(segments.getLastModified() == null ? "" : segments.getLastModified()) + "\t" +
+						segments.encode() + "\n");
+			}
+			writer.flush();
+			fos.getFD().sync();
+		} catch (IOException e1) {
+			ProjectSWG.log("Error writing download journal: " + e1.toString());
+			return false;
+		}
+		
+		try {
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e1) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Error replacing download journal: " + e1.toString());
+			return false;
+		}
+		
+		// the rename itself, not every platform can open a directory
+		try (FileChannel channel = FileChannel.open(new File(folder).toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e1) {
+			// windows can't open a directory at all, logging it would repeat on every checkpoint
+			// the rename still happened, it is only less certain to survive a power cut
+		}
+		return true;
+	}
+	
+	/*
+	 * null unless the saved ranges cover a file of this size
+	 */
+	public DownloadSegments get(String name, long size)
+	{
+		DownloadSegments segments = entries.get(name);
+		if (segments == null || segments.getSize() != size)
+			return null;
+		return segments;
+	}
+	
+	/*
+	 * a fully written entry is a verified download waiting for its file to be released
+	 */
+	public boolean hasFinished()
+	{
+		for (DownloadSegments segments : entries.values())
+			if (segments.getCompleted() == segments.getSize())
+				return true;
+		return false;
+	}
+	
+	public void put(String name, DownloadSegments segments)
+	{
+		entries.put(name, segments);
+	}
+	
+	public void remove(String name)
+	{
+		if (entries.remove(name) != null)
+			checkpoint();
+	}
+	
+	public String getFolder() { return folder; }
+}
@@ -0,0 +1,164 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * byte ranges of a download in progress and how far each one got
+ * positions move as data is written, durable positions only once it was forced to disk
+ */
+public class DownloadSegments
+{
+	public static final long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	private final long[] starts;
+	private final long[] ends;
+	private final AtomicLongArray positions;
+	private final AtomicLongArray durable;
+	private volatile String lastModified;
+	private volatile boolean stale;
+	
+	
+	public DownloadSegments(long size, int count)
+	{
+		count = (int)Math.max(1, Math.min(count, (size + MIN_SEGMENT_SIZE - 1) / MIN_SEGMENT_SIZE));
+		starts = new long[count];
+		ends = new long[count];
+		positions = new AtomicLongArray(count);
+		durable = new AtomicLongArray(count);
+		long segmentSize = (size + count - 1) / count;
+		for (int i = 0; i < count; i++) {
+			starts[i] = i * segmentSize;
+			ends[i] = Math.min(size, starts[i] + segmentSize) - 1;
+			positions.set(i, starts[i]);
+			durable.set(i, starts[i]);
+		}
+		lastModified = null;
+		stale = false;
+	}
+	
+	private DownloadSegments(long[] starts, long[] ends, long[] positions, String lastModified)
+	{
+		this.starts = starts;
+		this.ends = ends;
+		this.positions = new AtomicLongArray(positions);
+		this.durable = new AtomicLongArray(positions);
+		this.lastModified = lastModified;
+		stale = false;
+	}
+	
+	/*
+	 * ranges format: [start]:[end]:[position],...
+	 * null unless the ranges exactly cover a file of this size
+	 */
+	public static DownloadSegments decode(String ranges, String lastModified, long size)
+	{
+		String[] segments = ranges.split(",");
+		long[] starts = new long[segments.length];
+		long[] ends = new long[segments.length];
+		long[] positions = new long[segments.length];
+		long next = 0;
+		try {
+			for (int i = 0; i < segments.length; i++) {
+				String[] fields = segments[i].split(":");
+				if (fields.length != 3)
+					return null;
+				starts[i] = Long.parseLong(fields[0]);
+				ends[i] = Long.parseLong(fields[1]);
+				positions[i] = Long.parseLong(fields[2]);
+				if (starts[i] != next || ends[i] < starts[i] || positions[i] < starts[i] || positions[i] > ends[i] + 1)
+					return null;
+				next = ends[i] + 1;
+			}
+		} catch (NumberFormatException e1) {
+			return null;
+		}
+		if (next != size)
+			return null;
+		
+		return new DownloadSegments(starts, ends, positions, lastModified.equals("") ? null : lastModified);
+	}
+	
+	public String encode()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < starts.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(starts[i]).append(':').append(ends[i]).append(':').append(durable.get(i));
+		}
+		return sb.toString();
+	}
+	
+	/*
+	 * take positions before forcing the file, then mark them durable after
+	 */
+	public long[] snapshot()
+	{
+		long[] snapshot = new long[starts.length];
+		for (int i = 0; i < starts.length; i++)
+			snapshot[i] = positions.get(i);
+		return snapshot;
+	}
+	
+	public void setDurable(long[] snapshot)
+	{
+		for (int i = 0; i < starts.length; i++)
+			durable.set(i, snapshot[i]);
+	}
+	
+	public long getCompleted()
+	{
+		long completed = 0;
+		for (int i = 0; i < starts.length; i++)
+			completed += positions.get(i) - starts[i];
+		return completed;
+	}
+	
+	/*
+	 * end of the written prefix, segments are contiguous so the first unfinished one stops it
+	 */
+	public long getWritten()
+	{
+		for (int i = 0; i < starts.length; i++)
+			if (positions.get(i) <= ends[i])
+				return positions.get(i);
+		return getSize();
+	}
+	
+	// the first response decides which version of the file the segments belong to
+	public synchronized void setLastModified(String lastModified)
+	{
+		if (this.lastModified == null)
+			this.lastModified = lastModified;
+	}
+	
+	public void setPosition(int segment, long position) { positions.set(segment, position); }
+	public void setStale() { stale = true; }
+	
+	public int getCount() { return starts.length; }
+	public long getSize() { return ends[ends.length - 1] + 1; }
+	public long getStart(int segment) { return starts[segment]; }
+	public long getEnd(int segment) { return ends[segment]; }
+	public long getPosition(int segment) { return positions.get(segment); }
+	public String getLastModified() { return lastModified; }
+	public boolean isStale() { return stale; }
+}
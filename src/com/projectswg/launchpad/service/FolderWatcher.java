@@ -0,0 +1,201 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.projectswg.launchpad.ProjectSWG;
+import com.projectswg.launchpad.model.Resource;
+
+/*
+ * tracks which resources changed on disk since they were last verified,
+ * so a scan only has to visit dirty entries
+ */
+public class FolderWatcher
+{
+	private final String folder;
+	private final Path root;
+	private final AtomicLong clock;
+	// resource name -> clock of its last change event
+	private final ConcurrentHashMap<String, Long> changed;
+	// resource name -> [scan type]:[resource]
+	private final ConcurrentHashMap<String, String> verified;
+	private WatchService watchService;
+	private Thread thread;
+	private volatile boolean running;
+	
+	
+	public FolderWatcher(String folder)
+	{
+		this.folder = folder;
+		root = Paths.get(folder);
+		clock = new AtomicLong();
+		changed = new ConcurrentHashMap<>();
+		verified = new ConcurrentHashMap<>();
+		running = false;
+	}
+	
+	public boolean start()
+	{
+		if (!Files.isDirectory(root))
+			return false;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			// polled watchers report changes seconds late, which a scan can't trust
+			if (watchService.getClass().getSimpleName().startsWith("Polling")) {
+				ProjectSWG.log("Folder watcher: polling only, disabled");
+				watchService.close();
+				return false;
+			}
+			registerAll(root);
+		} catch (IOException e1) {
+			ProjectSWG.log("Folder watcher error: " + e1.toString());
+			return false;
+		}
+		
+		running = true;
+		thread = new Thread(() -> processEvents(), "pswg-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		ProjectSWG.log("Watching folder: " + folder);
+		return true;
+	}
+	
+	public void stop()
+	{
+		running = false;
+		verified.clear();
+		try {
+			if (watchService != null)
+				watchService.close();
+		} catch (IOException e1) {
+			ProjectSWG.log(e1.toString());
+		}
+	}
+	
+	private void registerAll(Path start) throws IOException
+	{
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	private void processEvents()
+	{
+		while (running) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e1) {
+				break;
+			}
+			
+			Path dir = (Path)key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					ProjectSWG.log("Folder watcher overflow, all resources dirty");
+					clock.incrementAndGet();
+					verified.clear();
+					continue;
+				}
+				Path path = dir.resolve((Path)event.context());
+				String name = root.relativize(path).toString().replace('\\', '/');
+				markChanged(name);
+				
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+					// files moved in with a folder don't get their own events
+					verified.keySet().removeIf((resource) -> resource.startsWith(name + "/"));
+					try {
+						registerAll(path);
+					} catch (IOException e1) {
+						ProjectSWG.log("Folder watcher error: " + e1.toString());
+					}
+				}
+			}
+			if (!key.reset() && dir.equals(root)) {
+				ProjectSWG.log("Folder watcher: root no longer accessible");
+				verified.clear();
+				running = false;
+			}
+		}
+		verified.clear();
+	}
+	
+	private void markChanged(String name)
+	{
+		changed.put(name, clock.incrementAndGet());
+		verified.remove(name);
+	}
+	
+	/*
+	 * true if the resource passed a scan at least as strict and hasn't changed since
+	 */
+	public boolean isClean(Resource resource, int scanType)
+	{
+		if (!running)
+			return false;
+		String entry = verified.get(resource.getName().replace('\\', '/'));
+		if (entry == null)
+			return false;
+		int split = entry.indexOf(':');
+		return Integer.parseInt(entry.substring(0, split)) >= scanType &&
+				entry.substring(split + 1).equals(resource.toString());
+	}
+	
+	/*
+	 * since is the clock read before the resource was checked, a change after that wins
+	 */
+	public void setVerified(Resource resource, int scanType, long since)
+	{
+		if (!running)
+			return;
+		String name = resource.getName().replace('\\', '/');
+		verified.put(name, scanType + ":" + resource.toString());
+		if (changed.getOrDefault(name, 0L) > since)
+			verified.remove(name);
+	}
+	
+	public long getClock() { return clock.get(); }
+	public String getFolder() { return folder; }
+	public boolean isRunning() { return running; }
+}
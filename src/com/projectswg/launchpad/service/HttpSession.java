@@ -0,0 +1,411 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * all requests to the update server go through here: auth, timeouts and retries
+ * HttpURLConnection keeps a socket alive for reuse once its body is read to the end and closed,
+ * so bodies nobody wants are drained or the socket is dropped on purpose
+ * the url may list several mirrors separated by whitespace or ';', requests go round robin
+ * over the fast healthy ones and a failing mirror is skipped for a while
+ */
+public class HttpSession
+{
+	public static final int CONNECT_TIMEOUT = 15000;
+	public static final int READ_TIMEOUT = 60000;
+	// with another mirror to turn to, a stall is given up on sooner
+	public static final int STALL_TIMEOUT = 15000;
+	public static final int PROBE_TIMEOUT = 5000;
+	public static final int PROBE_SIZE = 256 * 1024;
+	public static final long MIRROR_BACKOFF = 30000;
+	// mirrors at least this fraction of the fastest one share the work
+	public static final double FAST_MIRROR_RATIO = 0.5;
+	public static final int RETRIES = 3;
+	public static final int RETRY_DELAY = 500;
+	public static final int MAX_DRAIN = 64 * 1024;
+	public static final int GZIP_BUFFER_SIZE = 64 * 1024;
+	public static final String ENCODING_GZIP = "gzip";
+	
+	static {
+		// idle sockets kept per host, the default of 5 is below the transfers run at once
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", "" + Math.max(5, UpdateService.getConnections() * UpdateService.getSegments()));
+	}
+	
+	private final String url;
+	private final String username;
+	private final String password;
+	private final String authorization;
+	private final Mirror[] mirrors;
+	private final AtomicInteger next;
+	
+	
+	public HttpSession(String url, String username, String password)
+	{
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		authorization = getAuthorization(username, password);
+		
+		ArrayList<Mirror> mirrorList = new ArrayList<>();
+		for (String mirror : url.trim().split("[\\s;]+"))
+			if (!mirror.equals(""))
+				mirrorList.add(new Mirror(mirror));
+		if (mirrorList.isEmpty())
+			mirrorList.add(new Mirror(url));
+		mirrors = mirrorList.toArray(new Mirror[mirrorList.size()]);
+		next = new AtomicInteger();
+	}
+	
+	/*
+	 * basic auth header value, null without a username
+	 */
+	public static String getAuthorization(String username, String password)
+	{
+		if (username.equals(""))
+			return null;
+		return "Basic " + DatatypeConverter.printBase64Binary((username + ":" + password).getBytes());
+	}
+	
+	public boolean matches(String url, String username, String password)
+	{
+		return this.url.equals(url) && this.username.equals(username) && this.password.equals(password);
+	}
+	
+	public URLConnection open(String name) throws IOException
+	{
+		return open(name, (urlConnection) -> {});
+	}
+	
+	/*
+	 * connected and past the status line, setup adds request headers to each attempt
+	 * connection errors, 5xx and 429 are retried with a growing delay
+	 */
+	public URLConnection open(String name, Consumer<URLConnection> setup) throws IOException
+	{
+		IOException error = null;
+		Mirror previous = null;
+		int attempts = Math.max(RETRIES, mirrors.length);
+		for (int attempt = 1; attempt <= attempts; attempt++) {
+			// a different mirror is tried right away, the same one after a delay
+			Mirror mirror = select(previous);
+			if (attempt > 1 && mirror == previous) {
+				try {
+					Thread.sleep(RETRY_DELAY << Math.min(attempt - 2, RETRIES));
+				} catch (InterruptedException e1) {
+					throw new InterruptedIOException("Request interrupted: " + name);
+				}
+			}
+			previous = mirror;
+			
+			URLConnection urlConnection = new URL(mirror.url + name).openConnection();
+			urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+			urlConnection.setReadTimeout(mirrors.length > 1 ? STALL_TIMEOUT : READ_TIMEOUT);
+			if (authorization != null)
+				urlConnection.setRequestProperty("Authorization", authorization);
+			setup.accept(urlConnection);
+			
+			try {
+				if (!(urlConnection instanceof HttpURLConnection)) {
+					urlConnection.connect();
+					return urlConnection;
+				}
+				int code = ((HttpURLConnection)urlConnection).getResponseCode();
+				if (code < 500 && code != 429)
+					return urlConnection;
+				discard(urlConnection);
+				error = new IOException(String.format("Server returned %s: %s", code, name));
+			} catch (SocketTimeoutException e1) {
+				error = e1;
+			} catch (InterruptedIOException e1) {
+				throw e1;
+			} catch (IOException e1) {
+				error = e1;
+			}
+			mirror.fail();
+			ProjectSWG.log(String.format("Request failed, attempt %s of %s: %s", attempt, attempts, error.toString()));
+		}
+		throw error;
+	}
+	
+	/*
+	 * round robin over the healthy mirrors close to the fastest one
+	 * unmeasured mirrors are included so they get measured
+	 */
+	private Mirror select(Mirror previous)
+	{
+		if (mirrors.length == 1)
+			return mirrors[0];
+		
+		long now = System.currentTimeMillis();
+		ArrayList<Mirror> healthy = new ArrayList<>();
+		for (Mirror mirror : mirrors)
+			if (mirror != previous && mirror.downUntil <= now)
+				healthy.add(mirror);
+		if (healthy.isEmpty()) {
+			// all down, the one back soonest
+			Mirror soonest = null;
+			for (Mirror mirror : mirrors)
+				if (mirror != previous && (soonest == null || mirror.downUntil < soonest.downUntil))
+					soonest = mirror;
+			return soonest;
+		}
+		
+		double fastest = 0;
+		for (Mirror mirror : healthy)
+			fastest = Math.max(fastest, mirror.throughput);
+		ArrayList<Mirror> candidates = new ArrayList<>();
+		for (Mirror mirror : healthy)
+			if (mirror.throughput == 0 || mirror.throughput >= fastest * FAST_MIRROR_RATIO)
+				candidates.add(mirror);
+		return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+	}
+	
+	private Mirror getMirror(URLConnection urlConnection)
+	{
+		String connectionUrl = urlConnection.getURL().toString();
+		for (Mirror mirror : mirrors)
+			if (connectionUrl.startsWith(mirror.url))
+				return mirror;
+		return null;
+	}
+	
+	/*
+	 * a transfer that stalled or errored, its mirror is skipped for a while
+	 */
+	public void reportFailure(URLConnection urlConnection)
+	{
+		if (mirrors.length == 1 || urlConnection == null)
+			return;
+		Mirror mirror = getMirror(urlConnection);
+		if (mirror != null) {
+			ProjectSWG.log("Mirror failed: " + mirror.url);
+			mirror.fail();
+		}
+	}
+	
+	public void reportTransfer(URLConnection urlConnection, long bytes, long nanos)
+	{
+		if (mirrors.length == 1)
+			return;
+		Mirror mirror = getMirror(urlConnection);
+		if (mirror != null)
+			mirror.record(bytes, nanos);
+	}
+	
+	/*
+	 * times the first PROBE_SIZE bytes of name on every mirror at once
+	 * mirrors that don't answer in time start out skipped
+	 */
+	public void probe(String name)
+	{
+		if (mirrors.length == 1)
+			return;
+		ExecutorService executor = Executors.newFixedThreadPool(mirrors.length, (runnable) -> {
+			Thread thread = new Thread(runnable, "pswg-probe");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ArrayList<Callable<Boolean>> probes = new ArrayList<>();
+		for (Mirror mirror : mirrors)
+			probes.add(() -> probe(mirror, name));
+		try {
+			executor.invokeAll(probes, PROBE_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e1) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		for (Mirror mirror : mirrors)
+			ProjectSWG.log(String.format("Mirror %s: %s ms, %.2f MB/s%s",
+					mirror.url, mirror.latency / 1000000, mirror.throughput / 1024 / 1024,
+					mirror.downUntil > System.currentTimeMillis() ? ", down" : ""));
+	}
+	
+	private boolean probe(Mirror mirror, String name)
+	{
+		HttpURLConnection httpConnection = null;
+		try {
+			long start = System.nanoTime();
+			URLConnection urlConnection = new URL(mirror.url + name).openConnection();
+			if (!(urlConnection instanceof HttpURLConnection))
+				return false;
+			httpConnection = (HttpURLConnection)urlConnection;
+			httpConnection.setConnectTimeout(PROBE_TIMEOUT);
+			httpConnection.setReadTimeout(PROBE_TIMEOUT);
+			if (authorization != null)
+				httpConnection.setRequestProperty("Authorization", authorization);
+			httpConnection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+			int code = httpConnection.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+				mirror.fail();
+				discard(httpConnection);
+				return false;
+			}
+			mirror.latency = System.nanoTime() - start;
+			
+			byte[] buffer = new byte[Manager.MAX_BUFFER_SIZE];
+			long read = 0;
+			try (InputStream is = httpConnection.getInputStream()) {
+				int bytesRead;
+				while (read < PROBE_SIZE && (bytesRead = is.read(buffer)) > -1)
+					read += bytesRead;
+			}
+			// a whole file response is cut short on purpose
+			if (read >= PROBE_SIZE && code == HttpURLConnection.HTTP_OK)
+				httpConnection.disconnect();
+			mirror.record(read, System.nanoTime() - start);
+			return true;
+			
+		} catch (IOException e1) {
+			mirror.fail();
+			if (httpConnection != null)
+				httpConnection.disconnect();
+			return false;
+		}
+	}
+	
+	public int getMirrorCount()
+	{
+		return mirrors.length;
+	}
+	
+	public static boolean isCompressionEnabled()
+	{
+		return ProjectSWG.PREFS.getBoolean("compressed_downloads", true);
+	}
+	
+	/*
+	 * asks for a gzip body, only for full responses since ranges address the raw file
+	 */
+	public static void acceptCompressed(URLConnection urlConnection)
+	{
+		if (isCompressionEnabled())
+			urlConnection.setRequestProperty("Accept-Encoding", ENCODING_GZIP);
+	}
+	
+	/*
+	 * the decoded body of a response, raw is the stream as read off the socket
+	 */
+	public static InputStream decode(URLConnection urlConnection, InputStream raw) throws IOException
+	{
+		String encoding = urlConnection.getContentEncoding();
+		if (encoding == null || encoding.equalsIgnoreCase("identity"))
+			return raw;
+		if (encoding.equalsIgnoreCase(ENCODING_GZIP))
+			return new GZIPInputStream(raw, GZIP_BUFFER_SIZE);
+		raw.close();
+		throw new IOException("Unsupported content encoding: " + encoding);
+	}
+	
+	public static boolean isCompressed(URLConnection urlConnection)
+	{
+		String encoding = urlConnection.getContentEncoding();
+		return encoding != null && !encoding.equalsIgnoreCase("identity");
+	}
+	
+	/*
+	 * gives the socket back when the body is small, otherwise closes it
+	 */
+	public static void discard(URLConnection urlConnection)
+	{
+		if (!(urlConnection instanceof HttpURLConnection))
+			return;
+		HttpURLConnection httpConnection = (HttpURLConnection)urlConnection;
+		InputStream is = httpConnection.getErrorStream();
+		if (is == null && httpConnection.getContentLengthLong() >= 0 && httpConnection.getContentLengthLong() <= MAX_DRAIN) {
+			try {
+				is = httpConnection.getInputStream();
+			} catch (IOException e1) {
+				is = null;
+			}
+		}
+		if (is == null) {
+			httpConnection.disconnect();
+			return;
+		}
+		byte[] buffer = new byte[Manager.MAX_BUFFER_SIZE];
+		try {
+			int drained = 0, bytesRead;
+			while (drained <= MAX_DRAIN && (bytesRead = is.read(buffer)) > -1)
+				drained += bytesRead;
+			is.close();
+			if (drained > MAX_DRAIN)
+				httpConnection.disconnect();
+		} catch (IOException e1) {
+			httpConnection.disconnect();
+		}
+	}
+	
+	public String getUrl() { return url; }
+	
+	private static class Mirror
+	{
+		// weight of the newest sample in the throughput average
+		private static final double SMOOTHING = 0.3;
+		
+		private final String url;
+		private volatile long latency;
+		private volatile double throughput;
+		private volatile long downUntil;
+		
+		
+		private Mirror(String url)
+		{
+			this.url = url;
+			latency = 0;
+			throughput = 0;
+			downUntil = 0;
+		}
+		
+		private synchronized void record(long bytes, long nanos)
+		{
+			if (bytes <= 0 || nanos <= 0)
+				return;
+			double sample = bytes * 1e9 / nanos;
+			throughput = throughput == 0 ? sample : throughput + SMOOTHING * (sample - throughput);
+		}
+		
+		private void fail()
+		{
+			downUntil = System.currentTimeMillis() + MIRROR_BACKOFF;
+		}
+	}
+}
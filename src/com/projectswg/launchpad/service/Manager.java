@@ -21,18 +21,24 @@ package com.projectswg.launchpad.service;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
@@ -50,6 +56,7 @@ import com.projectswg.launchpad.model.Resource;
 import com.projectswg.launchpad.model.Instance;
 
 import javafx.application.Platform;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.collections.ObservableList;
@@ -83,6 +90,8 @@ public class Manager
 	public static final String BINARY_DEFAULT = "SwgClient_r.exe";
 	
 	public static final int MAX_BUFFER_SIZE = 2048;
+	public static final int HASH_BUFFER_SIZE = 1024 * 1024;
+	public static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024;
 	public static final int RESOURCE_LIST_HASH = 0;
 	
 	public static final int CHECK_SWG = 0;
@@ -106,9 +115,15 @@ public class Manager
 	public static final int STATE_WINE_REQUIRED = 8;
 	public static final int STATE_PSWG_READY = 9;
 	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// one direct buffer per scan thread, sized by the storage profile
+	private static final ThreadLocal<ByteBuffer> HASH_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+	
 	private ArrayList<Resource> resources;
 
 	private SimpleIntegerProperty state;
+	// launch critical resources verified while the rest is still being checked
+	private SimpleBooleanProperty launchable;
 	
 	private SimpleStringProperty mainOut;
 	
@@ -139,6 +154,20 @@ public class Manager
 	private PswgScanService pswgScanService;
 	private UpdateService updateService;
 	private PingService pingService;
+	private ScanCache scanCache;
+	private HttpSession httpSession;
+	private DownloadJournal downloadJournal;
+	private ContentStore contentStore;
+	private TransferStats scanStats;
+	private TransferStats updateStats;
+	// shared by every manager, a theme reload must not start a second watcher
+	private static FolderWatcher folderWatcher;
+	private static PeerCache peerCache;
+	private static UpdateScheduler updateScheduler;
+	// set by a scheduled check until its scan decides whether to update, fx thread only
+	private boolean backgroundCheck = false;
+	// set when the game closes with downloads waiting to replace files it held, fx thread only
+	private boolean retryReplace = false;
 	private ProjectSWG pswg;
 	
 	
@@ -198,11 +227,14 @@ public class Manager
 					state.set(STATE_PSWG_SETUP_REQUIRED);
 					mainOut.set("PSWG Setup Required");
 				});
-			else
+			else {
+				watchPswgFolder(newValue);
 				quickScan();
+			}
 		});
 		
 		state = new SimpleIntegerProperty(initialState);
+		launchable = new SimpleBooleanProperty(false);
 		
 		binary = new SimpleStringProperty(ProjectSWG.PREFS.get("binary", BINARY_DEFAULT));
 		gameFeatures = new SimpleStringProperty(ProjectSWG.PREFS.get("game_features", GAME_FEATURES));
@@ -222,6 +254,7 @@ public class Manager
 		
 		// update service
 		addUpdateServiceListeners();
+		scheduleUpdates(this);
 		
 		// launch configuration
 		binary.addListener((observable, oldValue, newValue) -> {
@@ -357,6 +390,8 @@ public class Manager
 	public void addPswgScanServiceListeners()
 	{
 		pswgScanService.setOnRunning((e) -> {
+			// set here, before the task can report its critical files done
+			launchable.set(false);
 			Platform.runLater(() -> {
 				state.set(STATE_PSWG_SCANNING);
 			});
@@ -366,6 +401,7 @@ public class Manager
 		pswgScanService.setOnCancelled((e) -> {
 			mainOut.unbind();
 			Platform.runLater(() -> {
+				backgroundCheck = false;
 				mainOut.set("PSWG Scan Cancelled");
 				state.set(STATE_PSWG_SCAN_REQUIRED);
 			});
@@ -375,6 +411,7 @@ public class Manager
 		pswgScanService.setOnFailed((e) -> {
 			mainOut.unbind();
 			Platform.runLater(() -> {
+				backgroundCheck = false;
 				mainOut.set("PSWG Scan Failed");
 				state.set(STATE_PSWG_SCAN_REQUIRED);
 			});
@@ -386,6 +423,7 @@ public class Manager
 			
 			if (result == null) {
 				Platform.runLater(() -> {
+					backgroundCheck = false;
 					mainOut.set("PSWG Scan Error");
 					state.set(STATE_PSWG_SCAN_REQUIRED);
 				});
@@ -394,11 +432,23 @@ public class Manager
 			
 			final double dlTotal = result.getKey();
 			resources = result.getValue();
+			servePeers(this);
 			
 			Platform.runLater(() -> {
+				boolean background = backgroundCheck;
+				backgroundCheck = false;
+				boolean replace = retryReplace;
+				retryReplace = false;
 				if (dlTotal > 0) {
 					state.set(STATE_UPDATE_REQUIRED);
 					mainOut.set(String.format("%.2f MB Required", dlTotal / 1024 / 1024));
+					if (replace && !RateLimiter.isPlaying() && getDownloadJournal().hasFinished()) {
+						ProjectSWG.log("Moving finished downloads into place");
+						startUpdate(false);
+					} else if (background && !RateLimiter.isPlaying()) {
+						ProjectSWG.log("Background update started");
+						startUpdate(true);
+					}
 				} else {
 					if (!ProjectSWG.isWindows())
 						if (wineBinary.getValue().equals("")) {
@@ -420,6 +470,8 @@ public class Manager
 	public void addUpdateServiceListeners()
 	{
 		updateService.setOnRunning((e) -> {
+			// set here, before the task can report its critical files done
+			launchable.set(false);
 			mainOut.bind(updateService.messageProperty());
 			Platform.runLater(() -> {
 				state.set(STATE_UPDATING);
@@ -428,6 +480,7 @@ public class Manager
 		
 		updateService.setOnCancelled((e) -> {
 			mainOut.unbind();
+			RateLimiter.setBackground(false);
 			Platform.runLater(() -> {
 				state.set(STATE_PSWG_SCAN_REQUIRED);
 				mainOut.set("Update Cancelled");
@@ -436,6 +489,7 @@ public class Manager
 		
 		updateService.setOnFailed((e) -> {
 			mainOut.unbind();
+			RateLimiter.setBackground(false);
 			ProjectSWG.log("Update failed: " + updateService.getException());
 			Platform.runLater(() -> {
 				state.set(STATE_PSWG_SCAN_REQUIRED);
@@ -445,6 +499,7 @@ public class Manager
 		
 		updateService.setOnSucceeded((e) -> {
 			mainOut.unbind();
+			RateLimiter.setBackground(false);
 			Platform.runLater(() -> {
 				if (updateService.getValue()) {
 					if (!ProjectSWG.isWindows())
@@ -480,8 +535,39 @@ public class Manager
 		pswgScanService.startScan(CHECK_HASH_PSWG, NORMAL_SCAN);
 	}
 	
+	public void criticalResourcesVerified()
+	{
+		Platform.runLater(() -> {
+			if (!ProjectSWG.isWindows() && wineBinary.getValue().equals(""))
+				return;
+			launchable.set(true);
+		});
+	}
+	
+	/*
+	 * a scheduled check from an idle launcher: fetch the resource list if it changed,
+	 * quick scan against it, then a low priority update if anything is missing
+	 */
+	public void backgroundUpdate()
+	{
+		if (state.get() != STATE_PSWG_READY && state.get() != STATE_UPDATE_REQUIRED)
+			return;
+		if (RateLimiter.isPlaying() || pswgScanService.isRunning() || updateService.isRunning())
+			return;
+		ProjectSWG.log("Background update check");
+		backgroundCheck = true;
+		pswgScanService.startScan(CHECK_SIZE_PSWG, NORMAL_SCAN, true);
+	}
+	
 	public void updatePswg()
 	{
+		// pressing update lifts a background update to full speed
+		startUpdate(false);
+	}
+	
+	private void startUpdate(boolean background)
+	{
+		RateLimiter.setBackground(background);
 		if (updateService.isRunning())
 			return;
 		updateService.reset();
@@ -523,9 +609,37 @@ public class Manager
 		Instance instance = new Instance(gameService);
 		instance.setLabel("ProjectSWG: " + pswg.getInstanceNumber());
 		instances.add(instance);
+		// adaptive download limit
+		gameService.runningProperty().addListener((observable, oldValue, newValue) -> {
+			updatePlaying();
+		});
 		gameService.start();
 	}
 	
+	private void updatePlaying()
+	{
+		boolean playing = false;
+		for (Instance instance : pswg.getInstances())
+			if (instance.getGameService().isRunning())
+				playing = true;
+		RateLimiter.setPlaying(playing);
+		// background updates never run beside a game
+		if (playing && RateLimiter.isBackground() && updateService.isRunning()) {
+			ProjectSWG.log("Game started, stopping background update");
+			updateService.cancel();
+		}
+		// files the game held open are replaced by an update once every instance is closed
+		if (!playing && !pswgFolder.getValue().equals("") && getDownloadJournal().hasFinished()) {
+			// a scan or update still running decides once it ends
+			if (pswgScanService.isRunning() || updateService.isRunning())
+				retryReplace = true;
+			else if (state.get() == STATE_UPDATE_REQUIRED) {
+				ProjectSWG.log("Game closed, moving finished downloads into place");
+				startUpdate(false);
+			}
+		}
+	}
+	
 	public void launchGameSettings()
 	{
 		if (pswgFolder.getValue().equals(""))
@@ -555,6 +669,167 @@ public class Manager
 		}
 	}
 	
+	public synchronized ScanCache getScanCache()
+	{
+		String folder = pswgFolder.getValue();
+		if (scanCache == null || !scanCache.getFolder().equals(folder))
+			scanCache = new ScanCache(folder);
+		return scanCache;
+	}
+	
+	/*
+	 * null when disabled or links aren't possible here
+	 */
+	public synchronized ContentStore getContentStore()
+	{
+		if (!ContentStore.isEnabled())
+			return null;
+		String folder = ContentStore.getStoreFolder(pswgFolder.getValue());
+		if (folder == null)
+			return null;
+		if (contentStore == null || !contentStore.getFolder().equals(folder))
+			contentStore = new ContentStore(folder);
+		return contentStore;
+	}
+	
+	public synchronized DownloadJournal getDownloadJournal()
+	{
+		String folder = pswgFolder.getValue();
+		if (downloadJournal == null || !downloadJournal.getFolder().equals(folder)) {
+			downloadJournal = new DownloadJournal(folder);
+			// single file resume state from before the journal
+			ProjectSWG.PREFS.remove("resume_download");
+		}
+		return downloadJournal;
+	}
+	
+	public synchronized HttpSession getHttpSession()
+	{
+		String url = updateServerUrl.getValue();
+		String username = updateServerUsername.getValue();
+		String password = updateServerPassword.getValue();
+		if (httpSession == null || !httpSession.matches(url, username, password))
+			httpSession = new HttpSession(url, username, password);
+		return httpSession;
+	}
+	
+	public static synchronized void watchPswgFolder(String folder)
+	{
+		if (folderWatcher != null) {
+			if (folderWatcher.getFolder().equals(folder) && folderWatcher.isRunning())
+				return;
+			folderWatcher.stop();
+		}
+		folderWatcher = new FolderWatcher(folder);
+		if (!folderWatcher.start())
+			folderWatcher = null;
+	}
+	
+	/*
+	 * started once a scan has produced the resource list, follows the latest manager
+	 */
+	public static synchronized void servePeers(Manager manager)
+	{
+		if (peerCache != null) {
+			if (PeerCache.isEnabled() && peerCache.getManager() == manager)
+				return;
+			peerCache.stop();
+			peerCache = null;
+		}
+		if (!PeerCache.isEnabled())
+			return;
+		peerCache = new PeerCache(manager);
+		if (!peerCache.start())
+			peerCache = null;
+	}
+	
+	public static synchronized void scheduleUpdates(Manager manager)
+	{
+		if (updateScheduler != null)
+			updateScheduler.stop();
+		updateScheduler = new UpdateScheduler(manager);
+		updateScheduler.start();
+	}
+	
+	public static synchronized FolderWatcher getFolderWatcher(String folder)
+	{
+		if (folderWatcher == null || !folderWatcher.getFolder().equals(folder))
+			return null;
+		return folderWatcher;
+	}
+	
+	/*
+	 * links are only made where a shared file can be spotted later and unlinked before a rewrite
+	 */
+	public static boolean canLinkFiles()
+	{
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	}
+	
+	// false when the folders are on different filesystems
+	public static boolean linkFile(File source, File target)
+	{
+		if (!canLinkFiles())
+			return false;
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e1) {
+			return false;
+		}
+	}
+	
+	public static boolean isSharedFile(File file)
+	{
+		if (!canLinkFiles() || !file.isFile())
+			return false;
+		try {
+			return (Integer)Files.getAttribute(file.toPath(), "unix:nlink") > 1;
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e1) {
+			return false;
+		}
+	}
+	
+	/*
+	 * kernel side copy, false if cancelled, progress receives the bytes copied so far
+	 */
+	public static boolean copyFile(File source, File target, BooleanSupplier cancelled, LongConsumer progress) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				if (cancelled.getAsBoolean())
+					return false;
+				long copied = in.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), out);
+				if (copied <= 0)
+					throw new IOException("Copy stalled: " + source.getName());
+				position += copied;
+				progress.accept(position);
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * atomic where the filesystem allows it, so the target is never seen half written
+	 */
+	public static boolean replaceFile(File source, File target)
+	{
+		try {
+			try {
+				Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e1) {
+				Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Error moving file into place: " + e1.toString());
+			return false;
+		}
+		return true;
+	}
+	
 	public static File getLocalResource(String path)
 	{
 		File file = new File(path);
@@ -571,28 +846,75 @@ public class Manager
 	}
 	
 	public static String getFileChecksum(File file)
+	{
+		return getFileChecksum(file, HASH_BUFFER_SIZE);
+	}
+	
+	public static String getFileChecksum(File file, int readSize)
+	{
+		byte[] digest = getFileDigest(file, readSize);
+		if (digest == null)
+			return null;
+		return toHex(digest);
+	}
+	
+	public static byte[] getFileDigest(File file, int readSize)
 	{
 		MessageDigest md = null;
-		try {
+		ByteBuffer buffer = getHashBuffer(readSize);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
 			md = MessageDigest.getInstance("md5");
-			InputStream is = Files.newInputStream(Paths.get(file.getPath()));
-			byte[] buffer = new byte[MAX_BUFFER_SIZE];
-			int read;
-			while ((read = is.read(buffer)) > 0)
-				md.update(buffer, 0, read);
-
-			is.close();
+			buffer.clear();
+			while (channel.read(buffer) > -1) {
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
 		} catch (NoSuchAlgorithmException | IOException e) {
 			ProjectSWG.log(e.toString());
 			return null;
 		}
 		
-		byte[] hash = md.digest();
-		StringBuilder sb = new StringBuilder();
+		return md.digest();
+	}
+	
+	/*
+	 * the thread's buffer only grows, the view handed out is readSize long so every read stays that size
+	 */
+	public static ByteBuffer getHashBuffer(int readSize)
+	{
+		ByteBuffer buffer = HASH_BUFFER.get();
+		if (buffer.capacity() < readSize) {
+			buffer = ByteBuffer.allocateDirect(readSize);
+			HASH_BUFFER.set(buffer);
+		}
+		buffer.clear();
+		buffer.limit(readSize);
+		return buffer.slice();
+	}
+	
+	public static String toHex(byte[] hash)
+	{
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+	
+	/*
+	 * compares a digest against a resource list checksum without building a string
+	 */
+	public static boolean checksumMatches(byte[] hash, String checksum)
+	{
+		if (hash == null || checksum == null || checksum.length() != hash.length * 2)
+			return false;
 		for (int i = 0; i < hash.length; i++)
-	        sb.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1, 3));
-
-		return sb.toString();
+			if (Character.digit(checksum.charAt(i * 2), 16) != ((hash[i] >> 4) & 0xf) ||
+				Character.digit(checksum.charAt(i * 2 + 1), 16) != (hash[i] & 0xf))
+				return false;
+		return true;
 	}
 	
 	public static byte[] encrypt(String text, String key)
@@ -901,6 +1223,10 @@ public class Manager
 	}
 	
 	public ArrayList<Resource> getResources() { return resources; }
+	public TransferStats getScanStats() { return scanStats; }
+	public void setScanStats(TransferStats scanStats) { this.scanStats = scanStats; }
+	public TransferStats getUpdateStats() { return updateStats; }
+	public void setUpdateStats(TransferStats updateStats) { this.updateStats = updateStats; }
 	
 	public PingService getPingService() { return pingService; }
 	public UpdateService getUpdateService() { return updateService; }
@@ -927,4 +1253,5 @@ public class Manager
 	public SimpleStringProperty getUpdateServerUsername() { return updateServerUsername; }
 	
 	public SimpleIntegerProperty getState() { return state; }
+	public SimpleBooleanProperty getLaunchable() { return launchable; }
 }
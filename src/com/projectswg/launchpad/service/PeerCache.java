@@ -0,0 +1,524 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.projectswg.launchpad.ProjectSWG;
+import com.projectswg.launchpad.model.Resource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * serves resources this launcher has verified to other launchers on the lan
+ * peers are found with a udp broadcast on the discovery port, the reply carries the http port and a nonce
+ * only files whose scan cache entry still matches the listed md5 are served,
+ * and the downloading side checks every file against the resource list anyway
+ * served on loopback and the site local addresses discovery broadcasts on, never on public ones
+ * every request carries a token: hmac of the nonce and the address it was sent to, keyed from the
+ * update server profile and peer_secret, so the update server credentials never leave the launcher
+ * request path: /[token]/[name], list format: [name]\t[md5] per line
+ */
+public class PeerCache
+{
+	public static final int DISCOVERY_PORT = 44453;
+	public static final int DISCOVERY_TIMEOUT = 500;
+	public static final int LIST_TIMEOUT = 2000;
+	public static final int SERVER_THREADS = 4;
+	public static final String LIST_PATH = ".peer";
+	public static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final String QUERY = "PSWG-PEER-QUERY";
+	private static final String REPLY = "PSWG-PEER";
+	// parseRange result for a range that starts past the end of the file
+	static final long[] UNSATISFIABLE = new long[0];
+	// tells a launcher's own reply apart from its peers'
+	private static final String INSTANCE_ID = UUID.randomUUID().toString().replace("-", "");
+	
+	private final Manager manager;
+	private final ArrayList<HttpServer> servers;
+	private int serverPort;
+	private String nonce;
+	private ExecutorService executor;
+	private DatagramSocket socket;
+	private volatile boolean running;
+	
+	
+	public PeerCache(Manager manager)
+	{
+		this.manager = manager;
+		servers = new ArrayList<>();
+		running = false;
+	}
+	
+	public static boolean isEnabled()
+	{
+		return ProjectSWG.PREFS.getBoolean("peer_cache", false);
+	}
+	
+	public static int getPort()
+	{
+		return ProjectSWG.PREFS.getInt("peer_port", DISCOVERY_PORT);
+	}
+	
+	/*
+	 * launchers of the same update server profile derive the same key, peer_secret keeps out
+	 * anyone else on the lan who could otherwise derive it from a public server profile
+	 */
+	public static byte[] getKey(Manager manager)
+	{
+		String secret = String.join("\n", "pswg-peer",
+				manager.getUpdateServerUrl().getValue(),
+				manager.getUpdateServerUsername().getValue(),
+				manager.getUpdateServerPassword().getValue(),
+				manager.getUpdateServerEncryptionKey().getValue(),
+				ProjectSWG.PREFS.get("peer_secret", ""));
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e1) {
+			ProjectSWG.log("Peer cache error: " + e1.toString());
+			return null;
+		}
+	}
+	
+	/*
+	 * authority is the host:port the request goes to, a token handed to another host is no use here
+	 */
+	public static String getToken(byte[] key, String nonce, String authority)
+	{
+		if (key == null)
+			return null;
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+			return Manager.toHex(mac.doFinal((nonce + "\n" + authority).getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e1) {
+			ProjectSWG.log("Peer cache error: " + e1.toString());
+			return null;
+		}
+	}
+	
+	public static String getAuthority(InetAddress address, int port)
+	{
+		String host = address.getHostAddress();
+		if (address instanceof Inet6Address)
+			host = "[" + host + "]";
+		return host + ":" + port;
+	}
+	
+	/*
+	 * a second launcher on the same machine can't take the discovery port,
+	 * it still finds the first one as a client
+	 */
+	public boolean start()
+	{
+		try {
+			socket = new DatagramSocket(getPort());
+		} catch (SocketException e1) {
+			ProjectSWG.log("Peer cache: discovery port unavailable, " + e1.toString());
+			return false;
+		}
+		executor = Executors.newFixedThreadPool(SERVER_THREADS, (runnable) -> {
+			Thread thread = new Thread(runnable, "pswg-peer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		// one server per address, all on the port the first one got
+		serverPort = 0;
+		for (InetAddress address : getServeAddresses()) {
+			try {
+				HttpServer server = HttpServer.create(new InetSocketAddress(address, serverPort), 0);
+				server.setExecutor(executor);
+				server.createContext("/", (exchange) -> handle(exchange));
+				server.start();
+				serverPort = server.getAddress().getPort();
+				servers.add(server);
+			} catch (IOException e1) {
+				ProjectSWG.log("Peer cache: can't serve on " + address.getHostAddress() + ", " + e1.toString());
+			}
+		}
+		if (servers.isEmpty()) {
+			socket.close();
+			executor.shutdownNow();
+			return false;
+		}
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		nonce = Manager.toHex(random);
+		
+		running = true;
+		Thread thread = new Thread(() -> answerQueries(), "pswg-peer-discovery");
+		thread.setDaemon(true);
+		thread.start();
+		ProjectSWG.log(String.format("Peer cache serving on port %s, %s addresses", serverPort, servers.size()));
+		return true;
+	}
+	
+	public void stop()
+	{
+		running = false;
+		if (socket != null)
+			socket.close();
+		for (HttpServer server : servers)
+			server.stop(0);
+		servers.clear();
+		if (executor != null)
+			executor.shutdownNow();
+	}
+	
+	private void answerQueries()
+	{
+		byte[] buffer = new byte[256];
+		byte[] reply = String.format("%s %s %s %s", REPLY, INSTANCE_ID, serverPort, nonce).getBytes(StandardCharsets.UTF_8);
+		while (running) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+				String[] query = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split(" ");
+				if (query.length != 2 || !query[0].equals(QUERY) || query[1].equals(INSTANCE_ID))
+					continue;
+				socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+			} catch (IOException e1) {
+				if (running)
+					ProjectSWG.log("Peer discovery error: " + e1.toString());
+			}
+		}
+	}
+	
+	/*
+	 * unchanged since it was last verified against the listed md5
+	 */
+	private boolean isVerified(Resource resource)
+	{
+		if (resource.getDlFlag())
+			return false;
+		BasicFileAttributes attrs = ScanCache.readAttributes(new File(manager.getPswgFolder().getValue() + "/" + resource.getName()));
+		return resource.getChecksum().equals(manager.getScanCache().get(resource.getName(), attrs));
+	}
+	
+	/*
+	 * the token must be for this nonce and the address the request actually arrived on
+	 */
+	private boolean isAuthorized(HttpExchange exchange, String token)
+	{
+		String expected = getToken(getKey(manager), nonce, getAuthority(exchange.getLocalAddress().getAddress(), serverPort));
+		return expected != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try {
+			if (!isEnabled() || !exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(isEnabled() ? 405 : 503, -1);
+				return;
+			}
+			String[] path = exchange.getRequestURI().getPath().split("/", 3);
+			if (path.length != 3 || !isAuthorized(exchange, path[1])) {
+				exchange.sendResponseHeaders(401, -1);
+				return;
+			}
+			String name = path[2];
+			ArrayList<Resource> resources = manager.getResources();
+			if (resources == null)
+				resources = new ArrayList<>();
+			if (name.equals(LIST_PATH)) {
+				sendList(exchange, resources);
+				return;
+			}
+			for (Resource resource : resources) {
+				if (resource.getName().equals(name) && isVerified(resource)) {
+					sendFile(exchange, new File(manager.getPswgFolder().getValue() + "/" + name));
+					return;
+				}
+			}
+			exchange.sendResponseHeaders(404, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private void sendList(HttpExchange exchange, ArrayList<Resource> resources) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Resource resource : resources)
+			if (isVerified(resource))
+				sb.append(resource.getName()).append('\t').append(resource.getChecksum()).append('\n');
+		byte[] list = sb.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, list.length == 0 ? -1 : list.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(list);
+		}
+	}
+	
+	/*
+	 * a single byte range is honored, so segmented downloads and resume work against a peer
+	 */
+	private void sendFile(HttpExchange exchange, File file) throws IOException
+	{
+		long size = file.length();
+		String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+				ZonedDateTime.ofInstant(Instant.ofEpochMilli(file.lastModified()), ZoneOffset.UTC));
+		long start = 0, end = size - 1;
+		
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		long[] bounds = null;
+		if (ifRange == null || ifRange.equals(lastModified))
+			bounds = parseRange(exchange.getRequestHeaders().getFirst("Range"), size);
+		if (bounds == UNSATISFIABLE) {
+			exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+			exchange.sendResponseHeaders(416, -1);
+			return;
+		}
+		boolean partial = bounds != null;
+		if (partial) {
+			start = bounds[0];
+			end = bounds[1];
+		}
+		
+		exchange.getResponseHeaders().set("Last-Modified", lastModified);
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		if (partial)
+			exchange.getResponseHeaders().set("Content-Range", String.format("bytes %s-%s/%s", start, end, size));
+		long length = end + 1 - start;
+		exchange.sendResponseHeaders(partial ? 206 : 200, length == 0 ? -1 : length);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				OutputStream os = exchange.getResponseBody()) {
+			WritableByteChannel out = Channels.newChannel(os);
+			long position = start;
+			while (position <= end) {
+				long sent = channel.transferTo(position, end + 1 - position, out);
+				if (sent <= 0)
+					break;
+				position += sent;
+			}
+		}
+	}
+	
+	/*
+	 * [first, last] of a single "bytes=first-last" range, last may be left open
+	 * null for the whole file, anything malformed or multiple ranges included
+	 */
+	static long[] parseRange(String range, long size)
+	{
+		if (range == null || !range.startsWith("bytes=") || range.contains(","))
+			return null;
+		String[] bounds = range.substring(6).split("-", -1);
+		if (bounds.length != 2)
+			return null;
+		try {
+			long first = Long.parseLong(bounds[0]);
+			long last = bounds[1].equals("") ? size - 1 : Math.min(size - 1, Long.parseLong(bounds[1]));
+			if (first > last || first >= size)
+				return UNSATISFIABLE;
+			return new long[] { first, last };
+		} catch (NumberFormatException e1) {
+			return null;
+		}
+	}
+	
+	/*
+	 * resource name -> session over the peers holding the listed version of it
+	 * files with the same set of peers share a session, so a failing peer is skipped for all of them
+	 * each list is one short request, a peer that is slow or gone is left out rather than retried
+	 */
+	public static HashMap<String, HttpSession> discover(List<Resource> resources, byte[] key)
+	{
+		HashMap<String, HttpSession> sessions = new HashMap<>();
+		Map<String, String> found = findPeers();
+		ArrayList<String> peers = new ArrayList<>();
+		for (Map.Entry<String, String> peer : found.entrySet()) {
+			String token = getToken(key, peer.getValue(), peer.getKey());
+			if (token != null)
+				peers.add("http://" + peer.getKey() + "/" + token + "/");
+		}
+		if (peers.isEmpty())
+			return sessions;
+		
+		HashMap<String, String> wanted = new HashMap<>();
+		for (Resource resource : resources)
+			wanted.put(resource.getName(), resource.getChecksum());
+		
+		HashMap<String, StringBuilder> holders = new HashMap<>();
+		for (String peer : peers) {
+			try {
+				HttpURLConnection urlConnection = (HttpURLConnection)new URL(peer + LIST_PATH).openConnection();
+				urlConnection.setConnectTimeout(LIST_TIMEOUT);
+				urlConnection.setReadTimeout(LIST_TIMEOUT);
+				if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					ProjectSWG.log(String.format("Peer list error: %s, %s", peer, urlConnection.getResponseCode()));
+					HttpSession.discard(urlConnection);
+					continue;
+				}
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream(), StandardCharsets.UTF_8))) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						String[] fields = line.split("\t");
+						if (fields.length == 2 && fields[1].equals(wanted.get(fields[0])))
+							holders.computeIfAbsent(fields[0], (name) -> new StringBuilder()).append(peer).append(' ');
+					}
+				}
+			} catch (IOException e1) {
+				ProjectSWG.log("Peer list error: " + peer + ", " + e1.toString());
+			}
+		}
+		
+		HashMap<String, HttpSession> bySet = new HashMap<>();
+		for (Map.Entry<String, StringBuilder> entry : holders.entrySet())
+			sessions.put(entry.getKey(), bySet.computeIfAbsent(entry.getValue().toString().trim(), (urls) -> new HttpSession(urls, "", "")));
+		ProjectSWG.log(String.format("Peer cache: %s peers, %s of %s resources available", peers.size(), sessions.size(), resources.size()));
+		return sessions;
+	}
+	
+	/*
+	 * host:port -> nonce of the launchers that answered, one per instance
+	 */
+	public static Map<String, String> findPeers()
+	{
+		// instance -> host:port, nonce
+		LinkedHashMap<String, String[]> peers = new LinkedHashMap<>();
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.setBroadcast(true);
+			byte[] query = (QUERY + " " + INSTANCE_ID).getBytes(StandardCharsets.UTF_8);
+			for (InetAddress address : getDiscoveryAddresses()) {
+				try {
+					socket.send(new DatagramPacket(query, query.length, address, getPort()));
+				} catch (IOException e1) {
+					// an interface that won't take broadcasts
+				}
+			}
+			
+			byte[] buffer = new byte[256];
+			long deadline = System.currentTimeMillis() + DISCOVERY_TIMEOUT;
+			long remaining;
+			while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+				socket.setSoTimeout((int)remaining);
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(packet);
+				} catch (SocketTimeoutException e1) {
+					break;
+				}
+				String[] reply = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split(" ");
+				if (reply.length != 4 || !reply[0].equals(REPLY) || reply[1].equals(INSTANCE_ID) || peers.containsKey(reply[1]))
+					continue;
+				try {
+					int port = Integer.parseInt(reply[2]);
+					peers.put(reply[1], new String[] { getAuthority(packet.getAddress(), port), reply[3] });
+				} catch (NumberFormatException e1) {
+					continue;
+				}
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Peer discovery error: " + e1.toString());
+			return Collections.emptyMap();
+		}
+		LinkedHashMap<String, String> found = new LinkedHashMap<>();
+		for (String[] peer : peers.values())
+			found.put(peer[0], peer[1]);
+		return found;
+	}
+	
+	/*
+	 * loopback for launchers on this machine, then the site local addresses that take discovery broadcasts
+	 */
+	private static ArrayList<InetAddress> getServeAddresses()
+	{
+		ArrayList<InetAddress> addresses = new ArrayList<>();
+		addresses.add(InetAddress.getLoopbackAddress());
+		try {
+			for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				if (!networkInterface.isUp() || networkInterface.isLoopback())
+					continue;
+				for (InterfaceAddress address : networkInterface.getInterfaceAddresses())
+					if (address.getAddress() instanceof Inet4Address && address.getAddress().isSiteLocalAddress() &&
+							address.getBroadcast() != null && !addresses.contains(address.getAddress()))
+						addresses.add(address.getAddress());
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Peer cache error: " + e1.toString());
+		}
+		return addresses;
+	}
+	
+	private static ArrayList<InetAddress> getDiscoveryAddresses()
+	{
+		ArrayList<InetAddress> addresses = new ArrayList<>();
+		addresses.add(InetAddress.getLoopbackAddress());
+		try {
+			addresses.add(InetAddress.getByName("255.255.255.255"));
+			for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				if (!networkInterface.isUp() || networkInterface.isLoopback())
+					continue;
+				for (InterfaceAddress address : networkInterface.getInterfaceAddresses())
+					if (address.getBroadcast() != null && !addresses.contains(address.getBroadcast()))
+						addresses.add(address.getBroadcast());
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Peer discovery error: " + e1.toString());
+		}
+		return addresses;
+	}
+	
+	public Manager getManager() { return manager; }
+}
@@ -0,0 +1,137 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * progress counters bumped by worker threads, published at a fixed rate
+ * workers never touch the fx thread, so a fast transfer can't flood it
+ * files in flight register their byte counter, a file publisher gets name -> bytes when any moved
+ */
+public class ProgressAggregator
+{
+	public static final int PUBLISH_MILLIS = 50;
+	
+	private final LongAdder done;
+	private final LongAdder total;
+	private final Publisher publisher;
+	private final ConcurrentHashMap<String, long[]> files;
+	private FilePublisher filePublisher;
+	private Map<String, Long> publishedFiles;
+	private ScheduledExecutorService executor;
+	private long publishedDone;
+	private long publishedTotal;
+	
+	
+	public ProgressAggregator(Publisher publisher)
+	{
+		this.publisher = publisher;
+		done = new LongAdder();
+		total = new LongAdder();
+		files = new ConcurrentHashMap<>();
+		filePublisher = null;
+		publishedFiles = new HashMap<>();
+		publishedDone = -1;
+		publishedTotal = -1;
+	}
+	
+	public synchronized void start()
+	{
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+			Thread thread = new Thread(runnable, "pswg-progress");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(() -> publish(), PUBLISH_MILLIS, PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	/*
+	 * publishes whatever is left, nothing is sent after this returns
+	 */
+	public synchronized void stop()
+	{
+		if (executor == null)
+			return;
+		executor.shutdownNow();
+		executor = null;
+		files.clear();
+		publish();
+	}
+	
+	private synchronized void publish()
+	{
+		publishFiles();
+		long done = this.done.sum();
+		long total = this.total.sum();
+		if (done == publishedDone && total == publishedTotal)
+			return;
+		publishedDone = done;
+		publishedTotal = total;
+		publisher.publish(done, total);
+	}
+	
+	private void publishFiles()
+	{
+		if (filePublisher == null)
+			return;
+		HashMap<String, Long> snapshot = new HashMap<>();
+		for (Map.Entry<String, long[]> file : files.entrySet()) {
+			long[] bytes = file.getValue();
+			synchronized (bytes) {
+				snapshot.put(file.getKey(), bytes[0]);
+			}
+		}
+		if (snapshot.equals(publishedFiles))
+			return;
+		publishedFiles = snapshot;
+		filePublisher.publish(snapshot);
+	}
+	
+	/*
+	 * bytes[0] is read under the array's lock, as the workers write it
+	 */
+	public void addFile(String name, long[] bytes) { files.put(name, bytes); }
+	public void removeFile(String name) { files.remove(name); }
+	public synchronized void setFilePublisher(FilePublisher filePublisher) { this.filePublisher = filePublisher; }
+	
+	public void add(long amount) { done.add(amount); }
+	public void addTotal(long amount) { total.add(amount); }
+	public long getDone() { return done.sum(); }
+	public long getTotal() { return total.sum(); }
+	
+	public interface Publisher
+	{
+		void publish(long done, long total);
+	}
+	
+	public interface FilePublisher
+	{
+		void publish(Map<String, Long> files);
+	}
+}
@@ -26,15 +26,22 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.net.URLConnection;
 import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javafx.concurrent.Service;
@@ -46,15 +53,14 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import com.projectswg.launchpad.ProjectSWG;
 import com.projectswg.launchpad.model.Resource;
 
 public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 {
-	private static final String SWG_CLIENT = "SwgClient_r.exe";
-	private static final String SWG_CLIENT_SETUP = "SwgClientSetup_r.exe";
+	public static final String SWG_CLIENT = "SwgClient_r.exe";
+	public static final String SWG_CLIENT_SETUP = "SwgClientSetup_r.exe";
 	
 	public static final int SCAN_INIT = -1;
 	public static final int SCAN_INTERRUPT = -2;
@@ -65,6 +71,7 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 	
 	private int scanType;
 	private int scanStrictness;
+	private boolean refreshList;
 	
 	private final Manager manager;
 	private File file;
@@ -79,6 +86,14 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 	}
 	
 	public void startScan(int scanType, int scanStrictness)
+	{
+		startScan(scanType, scanStrictness, false);
+	}
+	
+	/*
+	 * refreshList replaces the local resource list first if the server has a newer one
+	 */
+	public void startScan(int scanType, int scanStrictness, boolean refreshList)
 	{
 		if (isRunning())
 			return;
@@ -87,16 +102,100 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 		
 		this.scanType = scanType;
 		this.scanStrictness = scanStrictness;
+		this.refreshList = refreshList;
 		
 		reset();
 		start();
 	}
 	
+	public static ArrayList<Resource> parseResourceList(List<String> resourceList)
+	{
+		ArrayList<Resource> resources = new ArrayList<Resource>();
+		Pattern pattern = Pattern.compile("^([0-9]+)\\s+([0-9a-fA-F]{32})\\s+([0-9]+)\\s+(\\S+)$");
+		Matcher matcher;
+		
+		int size = resourceList.size();
+		if (size == 0) {
+			ProjectSWG.log("Error: size -> 0");
+			return null;
+		}
+		
+		if (!Pattern.matches("^[0-9]+$", resourceList.get(RESOURCE_COUNT_LINE))) {
+			ProjectSWG.log("Error: linecount -> " + resourceList.get(RESOURCE_COUNT_LINE));
+			return null;
+		}
+		
+		if (!Pattern.matches("^[0-9]{10,}$", resourceList.get(TIMESTAMP_LINE))) {
+			ProjectSWG.log("Error: timestamp -> " + resourceList.get(TIMESTAMP_LINE));
+			return null;
+		}
+		
+		if (!resourceList.get(BEGIN_LINE).equals("BEGIN")) {
+			ProjectSWG.log("Error: begin line -> " + resourceList.get(BEGIN_LINE));
+			return null;
+		}
+		
+		if (!resourceList.get(size - 1).equals("END")) {
+			ProjectSWG.log("Error: end -> " + resourceList.get(size - 2).equals("END"));
+			return null;
+		}
+	
+		//int timestamp = Integer.parseInt(resourceList.get(TIMESTAMP_LINE));
+		
+		String line;
+		for (int i = BEGIN_LINE + 1; i < resourceList.size() - 1; i++) {
+			line = resourceList.get(i);
+			matcher = pattern.matcher(line);
+			if (!matcher.find()) {
+				ProjectSWG.log(String.format("Error reading resource list: %s, %s", i, line));
+				return null;
+			}
+			
+			Resource res = new Resource(
+					matcher.group(4), 						// name
+					Integer.parseInt(matcher.group(3)), 	// size
+					matcher.group(2), 						// checksum
+					Integer.parseInt(matcher.group(1))); 	// strictness
+			
+			resources.add(res);
+		}
+		int resourceCount = Integer.parseInt(resourceList.get(RESOURCE_COUNT_LINE));
+		
+		if (resources.size() != resourceCount) {
+			ProjectSWG.log(String.format("Resource count mismatch: %s <> %s", resources.size(), resourceCount));
+			return null;
+		}
+		
+		return resources;
+	}
+	
+	public static String decrypt(byte[] data, String key)
+	{
+		try {
+			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
+			SecretKeySpec sks = new SecretKeySpec(key.getBytes(), "AES");
+			cipher.init(Cipher.DECRYPT_MODE, sks, new IvParameterSpec(key.getBytes()));
+			return new String(cipher.doFinal(data));
+		} catch (NoSuchAlgorithmException | 
+				 NoSuchPaddingException |
+				 InvalidKeyException |
+				 InvalidAlgorithmParameterException |
+				 IllegalBlockSizeException|
+				 BadPaddingException |
+				 NoSuchProviderException e1) {
+			ProjectSWG.log(e1.toString());
+			return null;
+		}
+	}
+	
 	@Override
 	protected Task<Pair<Double, ArrayList<Resource>>> createTask()
 	{
 		return new Task<Pair<Double, ArrayList<Resource>>>() {
 
+			private StorageProfile storage;
+			private TransferStats stats;
+
 			@Override
 			protected Pair<Double, ArrayList<Resource>> call() throws Exception
 			{
@@ -117,24 +216,29 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 					ProjectSWG.log("Failed to read resource list from local");
 					updateMessage("Fetching Resource List");
 					
-					resourceList = getResourceListFromRemote();
-					if (resourceList == null) {
+					resourceList = getResourceListFromRemote(0);
+					if (resourceList == null || resourceList.isEmpty()) {
 						ProjectSWG.log("Error fetching resource list");
 						return null;
 					}
 
-					if (useEncryption) {
-						if (!writeEncryptedResourceList(resourceList)) {
-							ProjectSWG.log("Error writing encypted resource list");
-							return null;
-						}
-					} else {
-						if (!writePlainTextResourceList(resourceList)) {
-							ProjectSWG.log("Error writing plain text resource list");
+					if (!writeResourceList(resourceList, useEncryption))
+						return null;
+				} else if (refreshList) {
+					// only a newer list replaces the local one, the scan then runs against it
+					updateMessage("Checking Resource List");
+					ArrayList<String> remoteList = getResourceListFromRemote(file.lastModified());
+					if (remoteList == null)
+						ProjectSWG.log("Error checking resource list, scanning the local one");
+					else if (remoteList.isEmpty())
+						ProjectSWG.log("Resource list not modified");
+					else if (PswgScanService.parseResourceList(remoteList) != null && getTimestamp(remoteList) > getTimestamp(resourceList)) {
+						ProjectSWG.log("Newer resource list: " + remoteList.get(TIMESTAMP_LINE));
+						if (!writeResourceList(remoteList, useEncryption))
 							return null;
-						}
-					}
-							
+						resourceList = remoteList;
+					} else
+						ProjectSWG.log("Resource list up to date");
 				}
 				
 				resources = parseResourceList(resourceList);
@@ -142,72 +246,143 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 					ProjectSWG.log("Error parsing resource list");
 					return null;
 				}
+				stats = new TransferStats(TransferStats.TYPE_SCAN);
 				double total = scanResources(resources);
+				manager.getScanCache().save();
+				if (manager.getContentStore() != null)
+					manager.getContentStore().save();
+				
+				stats.finish();
+				ProjectSWG.log(stats.summary());
+				stats.write(manager.getPswgFolder().getValue());
+				manager.setScanStats(stats);
 				
 				return new Pair<>(total, resources);
 			}
 			
-			private double scanResources(ArrayList<Resource> resources)
+			private double scanResources(ArrayList<Resource> manifest)
 			{
-				ProjectSWG.log("Scanning resources");
+				String folder = manager.getPswgFolder().getValue();
+				storage = StorageProfile.detect(folder);
+				int threads = storage.getScanThreads();
+				ProjectSWG.log(String.format("Scanning resources: %s threads, %s byte reads", threads, storage.getReadSize()));
+				
+				// launch critical files first, the rest keeps going once they pass
+				ArrayList<Resource> resources = ScanScheduler.schedule(manifest, manager.getScanCache(), folder, storage.isSequential(),
+						Manager.getFolderWatcher(folder), scanType);
+				int critical = ScanScheduler.countCritical(resources);
+				boolean criticalPassed = true;
+				
+				// hash on the pool, report from here in schedule order
+				ExecutorService executor = Executors.newFixedThreadPool(threads, (runnable) -> {
+					Thread thread = new Thread(runnable, "pswg-scan");
+					thread.setDaemon(true);
+					return thread;
+				});
+				ArrayList<Future<Boolean>> results = new ArrayList<>();
+				for (Resource resource : resources)
+					results.add(executor.submit(() -> scanResource(resource)));
+				executor.shutdown();
 				
 				Resource resource;
 				String resourceName;
 				double total = 0;
 				
-				for (int i = 0; i < resources.size(); i++) {
-					
-					if (isCancelled()) {
-						updateMessage("PSWG Scan Cancelled");
-						return -1;
-					}
-					
-					updateProgress(i, resources.size() * 100);
-
-					resource = resources.get(i);
-					resourceName = resource.getName();
-					
-					ProjectSWG.log(String.format("Scanning Resource %s of %s : %s, %s",
-							i + 1,
-							resources.size(),
-							resourceName,
-							resource.getSize()));
-					
-					updateMessage(String.format("Scanning Resource %s of %s", i + 1, resources.size()));
-
-					boolean scanResult = false;
-					if (resource.getStrictness() == Resource.DONT_SCAN) {
-						scanResult = true;
-						continue;
-					}
-					
-					file = new File(manager.getPswgFolder().getValue() + "/" + resourceName);
-					if (!file.isFile()) {
-						ProjectSWG.log("File not found: " + file.getAbsolutePath());
-					} else {
-						switch (scanType) {
-						case Manager.CHECK_EXIST_PSWG:
-							break;
-			
-						case Manager.CHECK_SIZE_PSWG:
-							if (resourceName.equals(SWG_CLIENT) || resourceName.equals(SWG_CLIENT_SETUP))
-								scanResult = checkResourceHash(file, resource);
-							else
-								scanResult = resource.getSize() == file.length();
-							break;
-			
-						case Manager.CHECK_HASH_PSWG:
-							scanResult = checkResourceHash(file, resource);
+				ProgressAggregator progress = new ProgressAggregator((done, count) -> updateProgress(done, count * 100));
+				progress.addTotal(resources.size());
+				progress.start();
+				try {
+					for (int i = 0; i < resources.size(); i++) {
+						
+						if (isCancelled()) {
+							updateMessage("PSWG Scan Cancelled");
+							return -1;
+						}
+						
+						progress.add(1);
+	
+						resource = resources.get(i);
+						resourceName = resource.getName();
+						
+						ProjectSWG.log(String.format("Scanning Resource %s of %s : %s, %s",
+								i + 1,
+								resources.size(),
+								resourceName,
+								resource.getSize()));
+						
+						updateMessage(String.format("Scanning Resource %s of %s", i + 1, resources.size()));
+						
+						boolean scanResult = results.get(i).get();
+						if (resource.getStrictness() == Resource.DONT_SCAN)
+							continue;
+						
+						ProjectSWG.log(scanResult ? "OK" : "Fail : " + new File(manager.getPswgFolder().getValue() + "/" + resourceName).length());
+						resource.setDlFlag(!scanResult);
+						if (!scanResult) {
+							total += resource.getDownloadSize();
+							if (i < critical)
+								criticalPassed = false;
+						}
+						
+						if (i + 1 == critical && criticalPassed) {
+							ProjectSWG.log("Launch critical resources verified");
+							manager.criticalResourcesVerified();
 						}
-						ProjectSWG.log(scanResult ? "OK" : "Fail : " + file.length());
 					}
-					resource.setDlFlag(!scanResult);
-					if (!scanResult)
-						total += resource.getSize();
+				} catch (InterruptedException | CancellationException e1) {
+					updateMessage("PSWG Scan Cancelled");
+					return -1;
+				} catch (ExecutionException e1) {
+					ProjectSWG.log("Scan error: " + e1.getCause());
+					return -1;
+				} finally {
+					executor.shutdownNow();
+					progress.stop();
 				}
 				return total;
 			}
 			
+			private boolean scanResource(Resource resource)
+			{
+				if (isCancelled())
+					return false;
+				if (resource.getStrictness() == Resource.DONT_SCAN)
+					return true;
+				
+				// unchanged since it last passed
+				FolderWatcher watcher = Manager.getFolderWatcher(manager.getPswgFolder().getValue());
+				if (watcher != null && watcher.isClean(resource, scanType))
+					return true;
+				long since = watcher == null ? 0 : watcher.getClock();
+				
+				String resourceName = resource.getName();
+				File file = new File(manager.getPswgFolder().getValue() + "/" + resourceName);
+				if (!file.isFile()) {
+					ProjectSWG.log("File not found: " + file.getAbsolutePath());
+					return false;
+				}
+				
+				boolean scanResult = false;
+				switch (scanType) {
+				case Manager.CHECK_EXIST_PSWG:
+					break;
+	
+				case Manager.CHECK_SIZE_PSWG:
+					if (resourceName.equals(SWG_CLIENT) || resourceName.equals(SWG_CLIENT_SETUP))
+						scanResult = checkResourceHash(file, resource);
+					else
+						scanResult = resource.getSize() == file.length();
+					break;
+	
+				case Manager.CHECK_HASH_PSWG:
+					scanResult = checkResourceHash(file, resource);
+				}
+				
+				if (scanResult && watcher != null)
+					watcher.setVerified(resource, scanType, since);
+				return scanResult;
+			}
+			
 			private ArrayList<String> readPlainTextResourceListFromLocal(String filePath)
 			{
 				ArrayList<String> list = new ArrayList<String>();
@@ -250,19 +425,26 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 				return list;
 			}
 			
-			private ArrayList<String> getResourceListFromRemote()
+			/*
+			 * empty if the list wasn't modified since modifiedSince, 0 fetches it regardless
+			 */
+			private ArrayList<String> getResourceListFromRemote(long modifiedSince)
 			{
 				ProjectSWG.log("Fetching resource list from remote...");
 				ArrayList<String> copy = new ArrayList<String>();
 				try {
-					URL url = new URL(manager.getUpdateServerUrl().getValue() + manager.getUpdateServerFileList().getValue());
-					URLConnection urlConnection = url.openConnection();
-					if (!manager.getUpdateServerUsername().getValue().equals("")) {
-						String auth = manager.getUpdateServerUsername().getValue() + ":" + manager.getUpdateServerPassword().getValue();
-						String basicAuth = "Basic " + DatatypeConverter.printBase64Binary(auth.getBytes());
-						urlConnection.setRequestProperty("Authorization", basicAuth);
+					URLConnection urlConnection = manager.getHttpSession().open(manager.getUpdateServerFileList().getValue(), (connection) -> {
+						HttpSession.acceptCompressed(connection);
+						connection.setIfModifiedSince(modifiedSince);
+					});
+					if (urlConnection instanceof HttpURLConnection) {
+						int code = ((HttpURLConnection)urlConnection).getResponseCode();
+						if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+							HttpSession.discard(urlConnection);
+							return copy;
+						}
 					}
-					BufferedReader in = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));
+					BufferedReader in = new BufferedReader(new InputStreamReader(HttpSession.decode(urlConnection, urlConnection.getInputStream())));
 					String line;
 					for (int i = 0; (line = in.readLine()) != null; i++) {
 						ProjectSWG.log(String.format("(Resource List) %s: %s", i, line));
@@ -276,67 +458,37 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 				return copy;
 			}
 
-			private ArrayList<Resource> parseResourceList(ArrayList<String> resourceList)
+			private long getTimestamp(ArrayList<String> resourceList)
 			{
-				updateMessage("Parsing Resource List");
-				
-				ArrayList<Resource> resources = new ArrayList<Resource>();
-				Pattern pattern = Pattern.compile("^([0-9]+)\\s+([0-9a-fA-F]{32})\\s+([0-9]+)\\s+(\\S+)$");
-				Matcher matcher;
-				
-				int size = resourceList.size();
-				if (size == 0) {
-					ProjectSWG.log("Error: size -> 0");
-					return null;
-				}
-				
-				if (!Pattern.matches("^[0-9]+$", resourceList.get(RESOURCE_COUNT_LINE))) {
-					ProjectSWG.log("Error: linecount -> " + resourceList.get(RESOURCE_COUNT_LINE));
-					return null;
-				}
-				
-				if (!Pattern.matches("^[0-9]{10,}$", resourceList.get(TIMESTAMP_LINE))) {
-					ProjectSWG.log("Error: timestamp -> " + resourceList.get(TIMESTAMP_LINE));
-					return null;
-				}
-				
-				if (!resourceList.get(BEGIN_LINE).equals("BEGIN")) {
-					ProjectSWG.log("Error: begin line -> " + resourceList.get(BEGIN_LINE));
-					return null;
-				}
-				
-				if (!resourceList.get(size - 1).equals("END")) {
-					ProjectSWG.log("Error: end -> " + resourceList.get(size - 2).equals("END"));
-					return null;
+				if (resourceList.size() <= TIMESTAMP_LINE)
+					return -1;
+				try {
+					return Long.parseLong(resourceList.get(TIMESTAMP_LINE));
+				} catch (NumberFormatException e1) {
+					return -1;
 				}
+			}
 			
-				//int timestamp = Integer.parseInt(resourceList.get(TIMESTAMP_LINE));
-				
-				String line;
-				for (int i = BEGIN_LINE + 1; i < resourceList.size() - 1; i++) {
-					line = resourceList.get(i);
-					matcher = pattern.matcher(line);
-					if (!matcher.find()) {
-						ProjectSWG.log(String.format("Error reading resource list: %s, %s", i, line));
-						return null;
+			private boolean writeResourceList(ArrayList<String> resourceList, boolean useEncryption)
+			{
+				if (useEncryption) {
+					if (!writeEncryptedResourceList(resourceList)) {
+						ProjectSWG.log("Error writing encypted resource list");
+						return false;
+					}
+				} else {
+					if (!writePlainTextResourceList(resourceList)) {
+						ProjectSWG.log("Error writing plain text resource list");
+						return false;
 					}
-					
-					Resource res = new Resource(
-							matcher.group(4), 						// name
-							Integer.parseInt(matcher.group(3)), 	// size
-							matcher.group(2), 						// checksum
-							Integer.parseInt(matcher.group(1))); 	// strictness
-					
-					resources.add(res);
-				}
-				int resourceCount = Integer.parseInt(resourceList.get(RESOURCE_COUNT_LINE));
-				
-				if (resources.size() != resourceCount) {
-					ProjectSWG.log(String.format("Resource count mismatch: %s <> %s", resources.size(), resourceCount));
-					return null;
 				}
-				
-				return resources;
+				return true;
+			}
+			
+			private ArrayList<Resource> parseResourceList(ArrayList<String> resourceList)
+			{
+				updateMessage("Parsing Resource List");
+				return PswgScanService.parseResourceList(resourceList);
 			}
 			
 			private byte[] encrypt(String text, String key)
@@ -358,25 +510,6 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 				}
 			}
 			
-			private String decrypt(byte[] data, String key)
-			{
-				try {
-					Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding", "BC");
-					SecretKeySpec sks = new SecretKeySpec(key.getBytes(), "AES");
-					cipher.init(Cipher.DECRYPT_MODE, sks, new IvParameterSpec(key.getBytes()));
-					return new String(cipher.doFinal(data));
-				} catch (NoSuchAlgorithmException | 
-						 NoSuchPaddingException |
-						 InvalidKeyException |
-						 InvalidAlgorithmParameterException |
-						 IllegalBlockSizeException|
-						 BadPaddingException |
-						 NoSuchProviderException e1) {
-					ProjectSWG.log(e1.toString());
-					return null;
-				}
-			}
-			
 			private boolean writePlainTextResourceList(ArrayList<String> resourceList)
 			{
 				ProjectSWG.log("Writting resource list as plain text");
@@ -422,11 +555,50 @@ public class PswgScanService extends Service<Pair<Double, ArrayList<Resource>>>
 				if (resource.getSize() != file.length())
 					return false;
 				
-				String checksum = Manager.getFileChecksum(file);
-				if (checksum == null)
-					return false;
+				// only re-hash if the file changed since it was last verified
+				ScanCache scanCache = manager.getScanCache();
+				BasicFileAttributes attrs = ScanCache.readAttributes(file);
+				String checksum = scanCache.get(resource.getName(), attrs);
+				
+				// block hashes of a good copy narrow a failure down to the bad blocks
+				// the sidecar is only read once the cache can't vouch for the file
+				String folder = manager.getPswgFolder().getValue();
+				BlockHashes good = null;
+				if (checksum == null || !checksum.equals(resource.getChecksum())) {
+					good = BlockHashes.load(folder, resource.getName());
+					if (good != null && !good.getChecksum().equals(resource.getChecksum()))
+						good = null;
+					if (checksum != null && good != null)
+						checksum = null;
+				}
 				
-				return checksum.equals(resource.getChecksum());
+				if (checksum == null) {
+					long hashStart = System.nanoTime();
+					if (good != null || BlockHashes.isEnabled()) {
+						BlockHashes blockHashes = BlockHashes.compute(file, good == null ? BlockHashes.BLOCK_SIZE : good.getBlockSize(), storage.getReadSize());
+						if (blockHashes == null)
+							return false;
+						checksum = blockHashes.getChecksum();
+						if (checksum.equals(resource.getChecksum())) {
+							if (good == null)
+								blockHashes.save(folder, resource.getName());
+						} else if (good != null)
+							resource.setRepairBlocks(good.getBlockSize(), blockHashes.diff(good));
+					} else
+						checksum = Manager.getFileChecksum(file, storage.getReadSize());
+					if (checksum == null)
+						return false;
+					stats.recordHash(file.length(), System.nanoTime() - hashStart);
+					scanCache.put(resource.getName(), attrs, checksum);
+				}
+				
+				if (!checksum.equals(resource.getChecksum()))
+					return false;
+				// verified copies are offered to the other profiles
+				ContentStore store = manager.getContentStore();
+				if (store != null)
+					store.add(file, checksum);
+				return true;
 			}
 		};
 	}
@@ -0,0 +1,221 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.LongSupplier;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * token bucket, the rate is read on every acquire so limits apply to transfers already running
+ * every download stream is throttled by the shared global bucket and a bucket of its own
+ * limits are in KB/s, 0 is unlimited
+ */
+public class RateLimiter
+{
+	public static final int BURST_MILLIS = 250;
+	public static final int PLAYING_LIMIT = 256;
+	public static final int BACKGROUND_LIMIT = 1024;
+	
+	private static volatile long globalRate;
+	private static volatile long connectionRate;
+	private static volatile long playingRate;
+	private static volatile long backgroundRate;
+	private static volatile boolean adaptive;
+	private static volatile boolean playing = false;
+	private static volatile boolean background = false;
+	
+	public static final RateLimiter GLOBAL = new RateLimiter(() -> getGlobalRate());
+	
+	static {
+		loadLimits();
+		ProjectSWG.PREFS.addPreferenceChangeListener((e) -> loadLimits());
+	}
+	
+	private final LongSupplier rate;
+	private final LongSupplier clock;
+	private double tokens;
+	private long last;
+	
+	
+	public RateLimiter(LongSupplier rate)
+	{
+		this(rate, () -> System.nanoTime());
+	}
+	
+	RateLimiter(LongSupplier rate, LongSupplier clock)
+	{
+		this.rate = rate;
+		this.clock = clock;
+		tokens = 0;
+		last = clock.getAsLong();
+	}
+	
+	private static void loadLimits()
+	{
+		globalRate = Math.max(0, ProjectSWG.PREFS.getInt("download_limit", 0)) * 1024L;
+		connectionRate = Math.max(0, ProjectSWG.PREFS.getInt("connection_limit", 0)) * 1024L;
+		playingRate = Math.max(1, ProjectSWG.PREFS.getInt("playing_limit", PLAYING_LIMIT)) * 1024L;
+		backgroundRate = Math.max(0, ProjectSWG.PREFS.getInt("background_limit", BACKGROUND_LIMIT)) * 1024L;
+		adaptive = ProjectSWG.PREFS.getBoolean("adaptive_limit", true);
+	}
+	
+	/*
+	 * set from the fx thread whenever a game starts or stops
+	 */
+	public static void setPlaying(boolean playing)
+	{
+		if (RateLimiter.playing != playing)
+			ProjectSWG.log("Download limit while playing: " + (playing && adaptive ? playingRate / 1024 + " KB/s" : "off"));
+		RateLimiter.playing = playing;
+	}
+	
+	public static boolean isPlaying()
+	{
+		return playing;
+	}
+	
+	/*
+	 * a scheduled update nobody is waiting for, capped at background_limit
+	 */
+	public static void setBackground(boolean background)
+	{
+		RateLimiter.background = background;
+	}
+	
+	public static boolean isBackground()
+	{
+		return background;
+	}
+	
+	public static long getGlobalRate()
+	{
+		long rate = globalRate;
+		if (playing && adaptive)
+			rate = cap(rate, playingRate);
+		if (background)
+			rate = cap(rate, backgroundRate);
+		return rate;
+	}
+	
+	static long cap(long rate, long limit)
+	{
+		if (limit <= 0)
+			return rate;
+		return rate == 0 ? limit : Math.min(rate, limit);
+	}
+	
+	public static long getConnectionRate()
+	{
+		return connectionRate;
+	}
+	
+	/*
+	 * a stream limited by the global bucket and its own connection bucket
+	 */
+	public static InputStream throttle(InputStream is)
+	{
+		return new ThrottledInputStream(is, new RateLimiter(() -> getConnectionRate()));
+	}
+	
+	/*
+	 * takes bytes that were already read, sleeping off any debt
+	 * a rate of 0 never waits
+	 */
+	public void acquire(long bytes) throws InterruptedIOException
+	{
+		long wait = reserve(bytes);
+		if (wait <= 0)
+			return;
+		try {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		} catch (InterruptedException e1) {
+			throw new InterruptedIOException("Throttled read interrupted");
+		}
+	}
+	
+	/*
+	 * takes bytes out of the bucket, nanoseconds until the debt is paid off
+	 */
+	synchronized long reserve(long bytes)
+	{
+		long now = clock.getAsLong();
+		long bytesPerSecond = rate.getAsLong();
+		if (bytesPerSecond <= 0) {
+			tokens = 0;
+			last = now;
+			return 0;
+		}
+		tokens = Math.min(bytesPerSecond * BURST_MILLIS / 1000.0, tokens + (now - last) * bytesPerSecond / 1e9);
+		last = now;
+		tokens -= bytes;
+		if (tokens >= 0)
+			return 0;
+		return (long)(-tokens * 1e9 / bytesPerSecond);
+	}
+	
+	private static class ThrottledInputStream extends FilterInputStream
+	{
+		private final RateLimiter connection;
+		
+		public ThrottledInputStream(InputStream in, RateLimiter connection)
+		{
+			super(in);
+			this.connection = connection;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if (b > -1) {
+				connection.acquire(1);
+				GLOBAL.acquire(1);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int bytesRead = super.read(b, off, len);
+			if (bytesRead > 0) {
+				connection.acquire(bytesRead);
+				GLOBAL.acquire(bytesRead);
+			}
+			return bytesRead;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			if (skipped > 0) {
+				connection.acquire(skipped);
+				GLOBAL.acquire(skipped);
+			}
+			return skipped;
+		}
+	}
+}
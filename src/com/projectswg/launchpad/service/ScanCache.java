@@ -0,0 +1,155 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * last verified md5 of each resource, keyed by path and (size, mtime, file key)
+ * line format: [name]\t[size]\t[mtime]\t[file_key]\t[md5]
+ */
+public class ScanCache
+{
+	public static final String CACHE_FILE = "launchpad.cache";
+	
+	private final String folder;
+	private final File file;
+	private final ConcurrentHashMap<String, String[]> entries;
+	private volatile boolean dirty;
+	
+	
+	public ScanCache(String folder)
+	{
+		this.folder = folder;
+		file = new File(folder + "/" + CACHE_FILE);
+		entries = new ConcurrentHashMap<>();
+		dirty = false;
+		load();
+	}
+	
+	private void load()
+	{
+		if (!file.isFile())
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath())) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 5)
+					continue;
+				entries.put(fields[0], fields);
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Error reading scan cache: " + e1.toString());
+			entries.clear();
+		}
+		ProjectSWG.log(String.format("Scan cache loaded: %s entries", entries.size()));
+	}
+	
+	public synchronized void save()
+	{
+		if (!dirty)
+			return;
+		
+		File temp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath())) {
+			for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+				writer.write(String.join("\t", entry.getValue()));
+				writer.newLine();
+			}
+		} catch (IOException e1) {
+			ProjectSWG.log("Error writing scan cache: " + e1.toString());
+			return;
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			dirty = false;
+		} catch (IOException e1) {
+			ProjectSWG.log("Error replacing scan cache: " + e1.toString());
+		}
+	}
+	
+	public static BasicFileAttributes readAttributes(File file)
+	{
+		try {
+			return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e1) {
+			return null;
+		}
+	}
+	
+	/*
+	 * returns the cached md5 if the file is unchanged since it was hashed
+	 */
+	public String get(String name, BasicFileAttributes attrs)
+	{
+		if (attrs == null)
+			return null;
+		String[] entry = entries.get(name);
+		if (entry == null)
+			return null;
+		if (!entry[1].equals("" + attrs.size()) ||
+			!entry[2].equals("" + attrs.lastModifiedTime().toMillis()) ||
+			!entry[3].equals(fileKey(attrs)))
+			return null;
+		return entry[4];
+	}
+	
+	public void put(String name, BasicFileAttributes attrs, String checksum)
+	{
+		if (attrs == null)
+			return;
+		entries.put(name, new String[] {
+			name,
+			"" + attrs.size(),
+			"" + attrs.lastModifiedTime().toMillis(),
+			fileKey(attrs),
+			checksum
+		});
+		dirty = true;
+	}
+	
+	public void remove(String name)
+	{
+		if (entries.remove(name) != null)
+			dirty = true;
+	}
+	
+	private static String fileKey(BasicFileAttributes attrs)
+	{
+		// not every platform exposes a file key
+		Object key = attrs.fileKey();
+		return key == null ? "-" : key.toString().replace('\t', ' ');
+	}
+	
+	public String getFolder() { return folder; }
+	public Path getPath() { return file.toPath(); }
+}
@@ -0,0 +1,134 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import com.projectswg.launchpad.model.Resource;
+
+/*
+ * orders a scan: files needed to launch first, then whatever is most
+ * likely to have changed, smallest first within each group
+ * sequential storage keeps name order inside a tier to limit seeking
+ */
+public class ScanScheduler
+{
+	public static final int TIER_CRITICAL = 0;
+	public static final int TIER_NORMAL = 1;
+	public static final int TIER_SKIP = 2;
+	
+	private static final List<String> ARCHIVE_EXTENSIONS = Arrays.asList(".tre", ".toc");
+	
+	
+	public static int getTier(Resource resource)
+	{
+		if (resource.getStrictness() == Resource.DONT_SCAN)
+			return TIER_SKIP;
+		if (isLaunchCritical(resource))
+			return TIER_CRITICAL;
+		return TIER_NORMAL;
+	}
+	
+	public static boolean isLaunchCritical(Resource resource)
+	{
+		String name = resource.getName();
+		return name.equals(PswgScanService.SWG_CLIENT) ||
+				name.equals(PswgScanService.SWG_CLIENT_SETUP) ||
+				resource.getStrictness() == Resource.ALWAYS_SCAN;
+	}
+	
+	/*
+	 * watcher may be null, entries it reports clean pass without touching the disk
+	 * so they are ranked as unchanged without a stat
+	 */
+	public static ArrayList<Resource> schedule(List<Resource> resources, ScanCache scanCache, String folder, boolean sequential, FolderWatcher watcher, int scanType)
+	{
+		ArrayList<Resource> schedule = new ArrayList<>(resources);
+		if (sequential) {
+			schedule.sort(Comparator.comparingInt(ScanScheduler::getTier)
+					.thenComparing(Resource::getName));
+			return schedule;
+		}
+		
+		// files the cache can't vouch for are the ones likely to fail
+		HashSet<Resource> unchanged = new HashSet<>();
+		for (Resource resource : resources) {
+			if (getTier(resource) == TIER_SKIP)
+				continue;
+			if (watcher != null && watcher.isClean(resource, scanType)) {
+				unchanged.add(resource);
+				continue;
+			}
+			File file = new File(folder + "/" + resource.getName());
+			if (scanCache.get(resource.getName(), ScanCache.readAttributes(file)) != null)
+				unchanged.add(resource);
+		}
+		
+		schedule.sort(Comparator.comparingInt(ScanScheduler::getTier)
+				.thenComparing((resource) -> unchanged.contains(resource))
+				.thenComparingLong(Resource::getSize));
+		return schedule;
+	}
+	
+	/*
+	 * what the client can't reach character select without: launch critical files,
+	 * anything that isn't an archive, and archives with no local copy at all
+	 * an outdated archive still loads, so it can follow while the game runs
+	 */
+	public static boolean isDownloadCritical(Resource resource, String folder)
+	{
+		if (isLaunchCritical(resource))
+			return true;
+		String name = resource.getName().toLowerCase();
+		for (String extension : ARCHIVE_EXTENSIONS)
+			if (name.endsWith(extension))
+				return !new File(folder + "/" + resource.getName()).isFile();
+		return true;
+	}
+	
+	/*
+	 * critical first, smallest first within each group so more files are done sooner
+	 */
+	public static ArrayList<Resource> scheduleDownloads(List<Resource> resources, String folder)
+	{
+		HashSet<Resource> critical = new HashSet<>();
+		for (Resource resource : resources)
+			if (isDownloadCritical(resource, folder))
+				critical.add(resource);
+		ArrayList<Resource> schedule = new ArrayList<>(resources);
+		schedule.sort(Comparator.comparing((Resource resource) -> !critical.contains(resource))
+				.thenComparingLong(Resource::getSize));
+		return schedule;
+	}
+	
+	public static int countCritical(List<Resource> schedule)
+	{
+		int count = 0;
+		for (Resource resource : schedule)
+			if (getTier(resource) == TIER_CRITICAL)
+				count++;
+		return count;
+	}
+}
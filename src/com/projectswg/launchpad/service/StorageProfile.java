@@ -0,0 +1,148 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * how the pswg folder should be read, based on the device behind it
+ * flash: parallel, rotational: one file at a time in name order, network: a few large reads in flight
+ */
+public class StorageProfile
+{
+	public static final int STORAGE_UNKNOWN = 0;
+	public static final int STORAGE_FLASH = 1;
+	public static final int STORAGE_ROTATIONAL = 2;
+	public static final int STORAGE_NETWORK = 3;
+	
+	public static final int NETWORK_THREADS = 4;
+	public static final int LARGE_READ_SIZE = 4 * 1024 * 1024;
+	
+	private static final List<String> NETWORK_FILESYSTEMS = Arrays.asList(
+			"nfs", "nfs4", "cifs", "smb3", "smbfs", "9p", "afs", "ceph", "glusterfs",
+			"davfs", "fuse.sshfs", "fuse.rclone");
+	
+	private final int type;
+	
+	
+	public StorageProfile(int type)
+	{
+		this.type = type;
+	}
+	
+	public static StorageProfile detect(String folder)
+	{
+		int type = STORAGE_UNKNOWN;
+		try {
+			if (folder.startsWith("\\\\") || folder.startsWith("//"))
+				type = STORAGE_NETWORK;
+			else if (new File("/proc/mounts").isFile())
+				type = detectLinux(new File(folder).getCanonicalPath());
+		} catch (IOException e1) {
+			ProjectSWG.log("Storage detection error: " + e1.toString());
+		}
+		ProjectSWG.log(String.format("Storage for %s: %s", folder, type));
+		return new StorageProfile(type);
+	}
+	
+	private static int detectLinux(String path) throws IOException
+	{
+		// longest mount point containing the folder
+		String device = null, fsType = null;
+		int longest = -1;
+		for (String line : Files.readAllLines(Paths.get("/proc/mounts"))) {
+			String[] fields = line.split(" ");
+			if (fields.length < 3)
+				continue;
+			String mountPoint = fields[1].replace("\\040", " ");
+			boolean contains = path.equals(mountPoint) ||
+					path.startsWith(mountPoint.endsWith("/") ? mountPoint : mountPoint + "/");
+			if (contains && mountPoint.length() > longest) {
+				longest = mountPoint.length();
+				device = fields[0];
+				fsType = fields[2];
+			}
+		}
+		if (fsType == null)
+			return STORAGE_UNKNOWN;
+		if (NETWORK_FILESYSTEMS.contains(fsType))
+			return STORAGE_NETWORK;
+		if (!device.startsWith("/dev/"))
+			return STORAGE_UNKNOWN;
+		
+		// partitions and mapper links resolve to a block device with a queue
+		Path block = Paths.get("/sys/class/block", Paths.get(device).toRealPath().getFileName().toString());
+		if (!Files.exists(block))
+			return STORAGE_UNKNOWN;
+		block = block.toRealPath();
+		if (Files.exists(block.resolve("partition")))
+			block = block.getParent();
+		Path rotational = block.resolve("queue/rotational");
+		if (!Files.isReadable(rotational))
+			return STORAGE_UNKNOWN;
+		return Files.readAllLines(rotational).get(0).trim().equals("1") ? STORAGE_ROTATIONAL : STORAGE_FLASH;
+	}
+	
+	/*
+	 * scan_threads overrides the device default
+	 */
+	public int getScanThreads()
+	{
+		int threads = ProjectSWG.PREFS.getInt("scan_threads", 0);
+		if (threads > 0)
+			return threads;
+		
+		int cores = Runtime.getRuntime().availableProcessors();
+		switch (type) {
+		case STORAGE_ROTATIONAL:
+			return 1;
+		case STORAGE_NETWORK:
+			return Math.min(cores, NETWORK_THREADS);
+		default:
+			return cores;
+		}
+	}
+	
+	public int getReadSize()
+	{
+		switch (type) {
+		case STORAGE_ROTATIONAL:
+		case STORAGE_NETWORK:
+			return LARGE_READ_SIZE;
+		default:
+			return Manager.HASH_BUFFER_SIZE;
+		}
+	}
+	
+	public boolean isSequential()
+	{
+		return type == STORAGE_ROTATIONAL;
+	}
+	
+	public int getType() { return type; }
+}
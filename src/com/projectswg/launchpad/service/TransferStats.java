@@ -0,0 +1,276 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * throughput and per-file latency of one scan or update run
+ * each run is appended as a json line to STATS_FILE in the pswg folder, the oldest are dropped past MAX_RECORDS
+ */
+public class TransferStats
+{
+	public static final String STATS_FILE = "launchpad_stats.json";
+	public static final int MAX_RECORDS = 200;
+	public static final String TYPE_SCAN = "scan";
+	public static final String TYPE_UPDATE = "update";
+	
+	private final String type;
+	private final long startTime;
+	private final long startNanos;
+	private volatile long endNanos;
+	private final AtomicLong files;
+	private final AtomicLong bytes;
+	private final Histogram hashLatency;
+	private final Histogram downloadTime;
+	private final Histogram timeToFirstByte;
+	// host -> [bytes, nanos]
+	private final ConcurrentHashMap<String, AtomicLong[]> hosts;
+	
+	
+	public TransferStats(String type)
+	{
+		this.type = type;
+		startTime = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		endNanos = 0;
+		files = new AtomicLong();
+		bytes = new AtomicLong();
+		hashLatency = new Histogram();
+		downloadTime = new Histogram();
+		timeToFirstByte = new Histogram();
+		hosts = new ConcurrentHashMap<>();
+	}
+	
+	public void recordHash(long size, long nanos)
+	{
+		files.incrementAndGet();
+		bytes.addAndGet(size);
+		hashLatency.record(nanos);
+	}
+	
+	/*
+	 * one per resource, however many requests it took
+	 */
+	public void recordDownload(long size, long nanos, long firstByteNanos)
+	{
+		files.incrementAndGet();
+		bytes.addAndGet(size);
+		downloadTime.record(nanos);
+		if (firstByteNanos >= 0)
+			timeToFirstByte.record(firstByteNanos);
+	}
+	
+	/*
+	 * one per http request, only the per host throughput
+	 */
+	public void recordRequest(String host, long size, long nanos)
+	{
+		AtomicLong[] hostTotals = hosts.computeIfAbsent(host == null ? "" : host, (key) -> new AtomicLong[] { new AtomicLong(), new AtomicLong() });
+		hostTotals[0].addAndGet(size);
+		hostTotals[1].addAndGet(nanos);
+	}
+	
+	public void finish()
+	{
+		endNanos = System.nanoTime();
+	}
+	
+	private long getElapsedNanos()
+	{
+		return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+	
+	private static double perSecond(long bytes, long nanos)
+	{
+		return nanos <= 0 ? 0 : bytes * 1e9 / nanos;
+	}
+	
+	public String summary()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s: %s files, %.2f MB in %.1f s, %.2f MB/s",
+				type,
+				files.get(),
+				bytes.get() / 1024.0 / 1024,
+				getElapsedNanos() / 1e9,
+				perSecond(bytes.get(), getElapsedNanos()) / 1024 / 1024));
+		if (hashLatency.getCount() > 0)
+			sb.append("\n  hash ms: " + hashLatency.summary());
+		if (downloadTime.getCount() > 0)
+			sb.append("\n  download ms: " + downloadTime.summary());
+		if (timeToFirstByte.getCount() > 0)
+			sb.append("\n  first byte ms: " + timeToFirstByte.summary());
+		for (Map.Entry<String, AtomicLong[]> host : new TreeMap<>(hosts).entrySet())
+			sb.append(String.format("\n  %s: %.2f MB/s",
+					host.getKey(),
+					perSecond(host.getValue()[0].get(), host.getValue()[1].get()) / 1024 / 1024));
+		return sb.toString();
+	}
+	
+	public String toJson()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"type\":\"").append(type).append('"');
+		sb.append(",\"start\":").append(startTime);
+		sb.append(",\"elapsed_ms\":").append(getElapsedNanos() / 1000000);
+		sb.append(",\"files\":").append(files.get());
+		sb.append(",\"bytes\":").append(bytes.get());
+		sb.append(",\"bytes_per_sec\":").append((long)perSecond(bytes.get(), getElapsedNanos()));
+		sb.append(",\"hash_ms\":").append(hashLatency.toJson());
+		sb.append(",\"download_ms\":").append(downloadTime.toJson());
+		sb.append(",\"first_byte_ms\":").append(timeToFirstByte.toJson());
+		sb.append(",\"hosts\":{");
+		boolean first = true;
+		for (Map.Entry<String, AtomicLong[]> host : new TreeMap<>(hosts).entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append('"').append(host.getKey().replace("\"", "")).append("\":{\"bytes\":").append(host.getValue()[0].get())
+				.append(",\"bytes_per_sec\":").append((long)perSecond(host.getValue()[0].get(), host.getValue()[1].get())).append('}');
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+	
+	/*
+	 * only the last MAX_RECORDS runs are kept, the file is rewritten through a temp file
+	 */
+	public void write(String folder)
+	{
+		if (folder == null || folder.equals(""))
+			return;
+		Path path = Paths.get(folder, STATS_FILE);
+		ArrayList<String> records = new ArrayList<>();
+		try {
+			if (Files.isRegularFile(path))
+				records.addAll(Files.readAllLines(path, StandardCharsets.UTF_8));
+		} catch (IOException e1) {
+			ProjectSWG.log("Error reading stats: " + e1.toString());
+		}
+		records.add(toJson());
+		
+		Path temp = Paths.get(folder, STATS_FILE + ".tmp");
+		try {
+			Files.write(temp, records.subList(Math.max(0, records.size() - MAX_RECORDS), records.size()), StandardCharsets.UTF_8);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e1) {
+			ProjectSWG.log("Error writing stats: " + e1.toString());
+		}
+	}
+	
+	public String getType() { return type; }
+	
+	/*
+	 * power of two millisecond buckets, bucket i holds values below 2^i ms
+	 */
+	public static class Histogram
+	{
+		public static final int BUCKETS = 24;
+		
+		private final AtomicLongArray buckets;
+		private final AtomicLong count;
+		private final AtomicLong sum;
+		private final AtomicLong max;
+		
+		
+		public Histogram()
+		{
+			buckets = new AtomicLongArray(BUCKETS);
+			count = new AtomicLong();
+			sum = new AtomicLong();
+			max = new AtomicLong();
+		}
+		
+		public void record(long nanos)
+		{
+			long millis = nanos / 1000000;
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(millis);
+			max.accumulateAndGet(millis, Math::max);
+		}
+		
+		public long getCount()
+		{
+			return count.get();
+		}
+		
+		// upper bound of the bucket holding the percentile
+		public long percentile(double percentile)
+		{
+			long total = count.get();
+			if (total == 0)
+				return 0;
+			long rank = (long)Math.ceil(total * percentile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return Math.min(1L << i, max.get());
+			}
+			return max.get();
+		}
+		
+		public String summary()
+		{
+			return String.format("n=%s mean=%s p50=%s p90=%s p99=%s max=%s",
+					count.get(),
+					count.get() == 0 ? 0 : sum.get() / count.get(),
+					percentile(0.5),
+					percentile(0.9),
+					percentile(0.99),
+					max.get());
+		}
+		
+		public String toJson()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"count\":").append(count.get());
+			sb.append(",\"sum\":").append(sum.get());
+			sb.append(",\"max\":").append(max.get());
+			sb.append(",\"p50\":").append(percentile(0.5));
+			sb.append(",\"p90\":").append(percentile(0.9));
+			sb.append(",\"p99\":").append(percentile(0.99));
+			sb.append(",\"buckets\":[");
+			for (int i = 0; i < BUCKETS; i++) {
+				if (i > 0)
+					sb.append(',');
+				sb.append(buckets.get(i));
+			}
+			sb.append("]}");
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+
+import com.projectswg.launchpad.ProjectSWG;
+
+/*
+ * checks the resource list every update_check_minutes and pre-downloads what changed
+ * only inside the update_windows, and never while a game is running
+ * windows: [HH:mm]-[HH:mm] separated by ',', a window may cross midnight, empty is any time
+ */
+public class UpdateScheduler
+{
+	public static final int TICK_SECONDS = 60;
+	public static final int CHECK_MINUTES = 60;
+	
+	private final Manager manager;
+	private ScheduledExecutorService executor;
+	private long lastCheck;
+	
+	
+	public UpdateScheduler(Manager manager)
+	{
+		this.manager = manager;
+		lastCheck = 0;
+	}
+	
+	public static boolean isEnabled()
+	{
+		return ProjectSWG.PREFS.getBoolean("background_updates", false);
+	}
+	
+	public static int getCheckMinutes()
+	{
+		return Math.max(1, ProjectSWG.PREFS.getInt("update_check_minutes", CHECK_MINUTES));
+	}
+	
+	public static boolean isIdleWindow(LocalTime now, String windows)
+	{
+		if (windows.trim().equals(""))
+			return true;
+		for (String window : windows.split(",")) {
+			String[] bounds = window.trim().split("-");
+			if (bounds.length != 2)
+				continue;
+			try {
+				LocalTime start = LocalTime.parse(bounds[0].trim());
+				LocalTime end = LocalTime.parse(bounds[1].trim());
+				if (start.isBefore(end) ? !now.isBefore(start) && now.isBefore(end) : !now.isBefore(start) || now.isBefore(end))
+					return true;
+			} catch (DateTimeParseException e1) {
+				ProjectSWG.log("Bad update window: " + window);
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * a short tick so preference changes apply without a restart
+	 */
+	public void start()
+	{
+		executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+			Thread thread = new Thread(runnable, "pswg-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> tick(), TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	public void stop()
+	{
+		if (executor != null)
+			executor.shutdownNow();
+	}
+	
+	private void tick()
+	{
+		if (!isEnabled() || RateLimiter.isPlaying())
+			return;
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < TimeUnit.MINUTES.toMillis(getCheckMinutes()))
+			return;
+		if (!isIdleWindow(LocalTime.now(), ProjectSWG.PREFS.get("update_windows", "")))
+			return;
+		lastCheck = now;
+		Platform.runLater(() -> manager.backgroundUpdate());
+	}
+	
+	public Manager getManager() { return manager; }
+}
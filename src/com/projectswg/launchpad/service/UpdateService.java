@@ -19,33 +19,104 @@
 
 package com.projectswg.launchpad.service;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
 
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableMap;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
 
-import javax.xml.bind.DatatypeConverter;
-
 import com.projectswg.launchpad.ProjectSWG;
 import com.projectswg.launchpad.model.Resource;
 
 public class UpdateService extends Service<Boolean>
 {
+	public static final int DOWNLOAD_ATTEMPTS = 2;
+	public static final int DOWNLOAD_CONNECTIONS = 4;
+	public static final int DOWNLOAD_SEGMENTS = 4;
+	public static final long SEGMENT_THRESHOLD = 64 * 1024 * 1024;
+	public static final long CHECKPOINT_INTERVAL = 8 * 1024 * 1024;
+	public static final int DIGEST_POLL_MILLIS = 10;
+	public static final String PART_EXTENSION = ".part";
+	
 	private final Manager manager;
+	// name -> bytes of every file in flight, fx thread only
+	private final ObservableMap<String, Long> files = FXCollections.observableHashMap();
 	
 	public UpdateService(Manager manager)
 	{
     	this.manager = manager;
 	}
 
+	/*
+	 * download_connections caps the transfers in flight
+	 */
+	public static int getConnections()
+	{
+		return Math.max(1, ProjectSWG.PREFS.getInt("download_connections", DOWNLOAD_CONNECTIONS));
+	}
+	
+	/*
+	 * download_segments caps the ranges of one large resource fetched at once
+	 */
+	public static int getSegments()
+	{
+		return Math.max(1, ProjectSWG.PREFS.getInt("download_segments", DOWNLOAD_SEGMENTS));
+	}
+	
+	/*
+	 * streams into os and md until the end of is, false if cancelled first
+	 * progress receives the bytes copied so far
+	 */
+	public static boolean transfer(InputStream is, OutputStream os, MessageDigest md, byte[] buffer, BooleanSupplier cancelled, LongConsumer progress) throws IOException
+	{
+		int bytesRead = 0, bytesBuffered = 0;
+		long copied = 0;
+		while ((bytesRead = is.read(buffer)) > -1) {
+			if (cancelled.getAsBoolean())
+				return false;
+			os.write(buffer, 0, bytesRead);
+			md.update(buffer, 0, bytesRead);
+			bytesBuffered += bytesRead;
+			copied += bytesRead;
+			progress.accept(copied);
+			if (bytesBuffered > 1024 * 1024) {
+				bytesBuffered = 0;
+				os.flush();
+			}
+		}
+		return true;
+	}
+	
 	@Override
 	protected Task<Boolean> createTask()
 	{
@@ -53,118 +124,881 @@ public class UpdateService extends Service<Boolean>
 
 			private String swgFolder = manager.getSwgFolder().getValue();
 			private String pswgFolder = manager.getPswgFolder().getValue();
+			private TransferStats stats;
+			private final ProgressAggregator progress = new ProgressAggregator((done, total) -> updateProgress(done, total));
+			private volatile boolean failed = false;
+			private volatile boolean rangesSupported = true;
+			private ExecutorService segmentExecutor;
+			private ExecutorService provisioner;
+			// resource name -> lan peers holding the listed version
+			private HashMap<String, HttpSession> peerSessions = new HashMap<>();
+			// names of the flagged resources the game can't start without
+			private final Set<String> critical = ConcurrentHashMap.newKeySet();
+			// verified downloads the running game kept from being moved into place
+			private final Set<Resource> deferred = ConcurrentHashMap.newKeySet();
 			
 			@Override
 			protected Boolean call() throws Exception
+			{
+				stats = new TransferStats(TransferStats.TYPE_UPDATE);
+				progress.setFilePublisher((snapshot) -> Platform.runLater(() -> {
+					files.keySet().retainAll(snapshot.keySet());
+					files.putAll(snapshot);
+				}));
+				try {
+					return update();
+				} finally {
+					if (provisioner != null)
+						provisioner.shutdownNow();
+					progress.stop();
+					updateProgress(-1, 0);
+					stats.finish();
+					ProjectSWG.log(stats.summary());
+					stats.write(pswgFolder);
+					manager.setUpdateStats(stats);
+				}
+			}
+			
+			private boolean update() throws Exception
 			{
 		    	ArrayList<Resource> resources = manager.getResources();
+				ArrayList<Resource> provisionList = new ArrayList<Resource>();
 				ArrayList<Resource> downloadList = new ArrayList<Resource>();
 				
-				for (Resource resource : resources)
-					if (resource.getDlFlag())
+				for (Resource resource : resources) {
+					if (!resource.getDlFlag())
+						continue;
+					if (ScanScheduler.isDownloadCritical(resource, pswgFolder))
+						critical.add(resource.getName());
+					// check if swg file
+					if (SwgScanService.SWG_FILES.containsKey(resource.getName()) && !swgFolder.equals(pswgFolder))
+						provisionList.add(resource);
+					else
 						downloadList.add(resource);
+				}
+				// play opens up once the critical files are in, the rest keeps streaming
+				downloadList = ScanScheduler.scheduleDownloads(downloadList, pswgFolder);
+				ProjectSWG.log(String.format("Launch critical resources to update: %s", critical.size()));
+				if (critical.isEmpty())
+					manager.criticalResourcesVerified();
+				progress.start();
 				
-				String resourceName;
-				File copyFrom, copyTo;
-				for (int i = 0; i < downloadList.size(); i++) {
-					resourceName = downloadList.get(i).getName();
-					// check if swg file
-					if (Arrays.asList(SwgScanService.SWG_FILES.keySet()).contains(resourceName)) {
-						updateMessage(String.format("Copying Resource %s of %s", i + 1, downloadList.size()));
-						if (manager.getSwgFolder().getValue().equals(manager.getPswgFolder().getValue()))
-							continue;
-						copyFrom = new File(swgFolder + "/" + resourceName);
-						copyTo = new File(pswgFolder + "/" + resourceName);
-						if (copyTo.isFile())
-							Files.delete(copyTo.toPath());
-						Files.copy(copyFrom.toPath(), copyTo.toPath());
-						ProjectSWG.log("Copied file: " + resourceName);
-					} else {
-						updateMessage(String.format("Downloading Resource %s of %s", i + 1, downloadList.size()));
-						if (!downloadResource(downloadList.get(i))) {
-							ProjectSWG.log(resourceName + " did not download successfully");
+				// local copies run beside the network transfers, any that fail verification are downloaded after
+				Future<ArrayList<Resource>> provisioned = null;
+				if (provisionList.size() > 0) {
+					for (Resource resource : provisionList)
+						progress.addTotal(resource.getSize());
+					provisioner = Executors.newSingleThreadExecutor((runnable) -> {
+						Thread thread = new Thread(runnable, "pswg-provision");
+						thread.setDaemon(true);
+						return thread;
+					});
+					provisioned = provisioner.submit(() -> provisionResources(provisionList));
+				}
+				
+				// the list is small and on every mirror, timing it ranks them
+				if (downloadList.size() > 0)
+					manager.getHttpSession().probe(manager.getUpdateServerFileList().getValue());
+				if (PeerCache.isEnabled() && downloadList.size() > 0)
+					peerSessions = PeerCache.discover(resources, PeerCache.getKey(manager));
+				
+				boolean success = downloadResources(downloadList);
+				if (provisioned != null) {
+					ArrayList<Resource> fallbackList = provisioned.get();
+					if (success && fallbackList.size() > 0)
+						success = downloadResources(fallbackList);
+				}
+				// the game closed while the update ran
+				if (success && !RateLimiter.isPlaying())
+					for (Resource resource : deferred) {
+						deferred.remove(resource);
+						success &= replaceFinished(resource, new long[] { resource.getDownloadSize() });
+					}
+				if (!success)
+					return false;
+				manager.getScanCache().save();
+				if (manager.getContentStore() != null)
+					manager.getContentStore().save();
+				ProjectSWG.log("UpdateService: end");
+				return true;
+			}
+			
+			/*
+			 * keeps up to download_connections transfers in flight, progress is weighted by bytes
+			 * after a failure the queued resources are dropped and the ones in flight finish
+			 */
+			private boolean downloadResources(ArrayList<Resource> downloadList)
+			{
+				if (downloadList.size() == 0)
+					return true;
+				for (Resource resource : downloadList)
+					progress.addTotal(resource.getDownloadSize());
+				
+				// a background update stays out of the way: one connection at the lowest priority
+				boolean background = RateLimiter.isBackground();
+				int connections = background ? 1 : Math.min(getConnections(), downloadList.size());
+				ExecutorService executor = Executors.newFixedThreadPool(connections, (runnable) -> {
+					Thread thread = new Thread(runnable, "pswg-download");
+					thread.setDaemon(true);
+					if (background)
+						thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+				segmentExecutor = Executors.newCachedThreadPool((runnable) -> {
+					Thread thread = new Thread(runnable, "pswg-segment");
+					thread.setDaemon(true);
+					return thread;
+				});
+				ProjectSWG.log(String.format("Downloading %s resources, %s connections", downloadList.size(), connections));
+				
+				AtomicInteger started = new AtomicInteger();
+				ArrayList<Future<Boolean>> futures = new ArrayList<>();
+				try {
+					for (Resource resource : downloadList)
+						futures.add(executor.submit(() -> {
+							if (isCancelled() || failed)
+								return false;
+							updateMessage(String.format("Downloading Resource %s of %s", started.incrementAndGet(), downloadList.size()));
+							if (downloadResource(resource))
+								return true;
+							ProjectSWG.log(resource.getName() + " did not download successfully");
+							failed = true;
 							return false;
-						}
+						}));
+					
+					boolean success = true;
+					for (Future<Boolean> future : futures)
+						success &= future.get();
+					return success && !isCancelled();
+					
+				} catch (InterruptedException | CancellationException e1) {
+					ProjectSWG.log("Update cancelled");
+					return false;
+					
+				} catch (ExecutionException e1) {
+					ProjectSWG.log("Update Error: " + e1.getCause());
+					return false;
+					
+				} finally {
+					executor.shutdownNow();
+					segmentExecutor.shutdownNow();
+				}
+			}
+			
+			/*
+			 * base game files come from the swg folder: a hardlink when both folders share a filesystem,
+			 * otherwise a kernel side copy, either way verified against the list before it counts
+			 * returns the resources that still have to be downloaded
+			 */
+			private ArrayList<Resource> provisionResources(ArrayList<Resource> provisionList)
+			{
+				ArrayList<Resource> fallbackList = new ArrayList<>();
+				for (Resource resource : provisionList) {
+					if (isCancelled())
+						break;
+					long[] fileProgress = { 0 };
+					progress.addFile(resource.getName(), fileProgress);
+					boolean provisioned = provisionResource(resource, fileProgress);
+					progress.removeFile(resource.getName());
+					if (!provisioned) {
+						ProjectSWG.log("Local copy failed, downloading: " + resource.getName());
+						setFileProgress(fileProgress, 0);
+						progress.addTotal(-resource.getSize());
+						fallbackList.add(resource);
 					}
 				}
-				ProjectSWG.log("UpdateService: end");
+				return fallbackList;
+			}
+			
+			private boolean provisionResource(Resource resource, long[] fileProgress)
+			{
+				String name = resource.getName();
+				File source = new File(swgFolder + "/" + name);
+				File target = new File(pswgFolder + "/" + name);
+				if (!source.isFile())
+					return false;
+				
+				updateMessage("Copying Resource: " + name);
+				boolean linked;
+				try {
+					target.getParentFile().mkdirs();
+					Files.deleteIfExists(target.toPath());
+					linked = Manager.linkFile(source, target);
+					if (!linked && !Manager.copyFile(source, target, () -> isCancelled(), (bytes) -> setFileProgress(fileProgress, bytes)))
+						return false;
+				} catch (IOException e1) {
+					ProjectSWG.log("Copy Error: " + e1.toString());
+					return false;
+				}
+				
+				String checksum = Manager.getFileChecksum(target);
+				if (checksum == null || !checksum.equals(resource.getChecksum())) {
+					ProjectSWG.log("Local copy checksum mismatch: " + name);
+					target.delete();
+					return false;
+				}
+				setVerified(resource, target, checksum);
+				setFileProgress(fileProgress, resource.getSize());
+				ProjectSWG.log((linked ? "Linked file: " : "Copied file: ") + name);
 				return true;
 			}
 			
+			/*
+			 * a verified resource goes into the scan cache and the shared store
+			 */
+			private void setVerified(Resource resource, File file, String checksum)
+			{
+				manager.getScanCache().put(resource.getName(), ScanCache.readAttributes(file), checksum);
+				ContentStore store = manager.getContentStore();
+				if (store != null)
+					store.add(file, checksum);
+				resource.setDlFlag(false);
+				if (critical.remove(resource.getName()) && critical.isEmpty()) {
+					ProjectSWG.log("Launch critical resources updated");
+					manager.criticalResourcesVerified();
+				}
+			}
+			
+			private void setFileProgress(long[] fileProgress, long bytes)
+			{
+				synchronized (fileProgress) {
+					progress.add(bytes - fileProgress[0]);
+					fileProgress[0] = bytes;
+				}
+			}
+			
+			private void addFileProgress(long[] fileProgress, long bytes)
+			{
+				synchronized (fileProgress) {
+					setFileProgress(fileProgress, fileProgress[0] + bytes);
+				}
+			}
+			
+			/*
+			 * a request only feeds the per host throughput, its bytes add to the resource's sample
+			 */
+			private void recordRequest(long[] transfer, URLConnection urlConnection, long bytes, long nanos)
+			{
+				stats.recordRequest(urlConnection.getURL().getHost(), bytes, nanos);
+				synchronized (transfer) {
+					transfer[0] += bytes;
+				}
+			}
+			
+			private void recordFirstByte(long[] transfer)
+			{
+				synchronized (transfer) {
+					if (transfer[1] < 0)
+						transfer[1] = System.nanoTime();
+				}
+			}
+			
+			/*
+			 * one download sample per resource over all of its requests: bytes, wall time, first byte
+			 */
 			private boolean downloadResource(Resource resource)
+			{
+				long start = System.nanoTime();
+				long[] fileProgress = { 0 };
+				// bytes received, nano time of the first one
+				long[] transfer = { 0, -1 };
+				progress.addFile(resource.getName(), fileProgress);
+				boolean downloaded;
+				try {
+					downloaded = downloadResource(resource, fileProgress, transfer);
+				} finally {
+					progress.removeFile(resource.getName());
+				}
+				if (transfer[0] > 0)
+					stats.recordDownload(transfer[0], System.nanoTime() - start, transfer[1] < 0 ? -1 : transfer[1] - start);
+				return downloaded;
+			}
+			
+			private boolean downloadResource(Resource resource, long[] fileProgress, long[] transfer)
 			{
 				String name = resource.getName();
-				String path = manager.getPswgFolder().getValue() + "/" + name;
-				File file = Manager.getLocalResource(path);
-				if (file == null)
+				if (isFinished(resource))
+					return replaceFinished(resource, fileProgress);
+				// another profile already verified this content
+				ContentStore store = manager.getContentStore();
+				File stored = new File(pswgFolder + "/" + name);
+				if (store != null && store.link(stored, resource.getChecksum(), resource.getSize())) {
+					manager.getDownloadJournal().remove(name);
+					setVerified(resource, stored, resource.getChecksum());
+					setFileProgress(fileProgress, resource.getDownloadSize());
+					ProjectSWG.log("Linked from store: " + name);
+					return true;
+				}
+				// a linked base file is shared with the swg folder, only a repair would write through it
+				if (resource.getRepairBlocks() != null && Manager.isSharedFile(new File(pswgFolder + "/" + name))) {
+					ProjectSWG.log("Shared file, downloading instead of repairing: " + name);
+					progress.addTotal(resource.getSize() - resource.getDownloadSize());
+					resource.setRepairBlocks(0, null);
+				}
+				if (resource.getRepairBlocks() != null) {
+					if (repairResource(resource, fileProgress, transfer))
+						return true;
+					ProjectSWG.log("Block repair failed, downloading whole file: " + name);
+					setFileProgress(fileProgress, 0);
+					progress.addTotal(resource.getSize() - resource.getDownloadSize());
+				}
+				if (DeltaPatch.isEnabled() && patchResource(resource, fileProgress, transfer))
+					return true;
+				
+				// a lan peer goes first, the update server takes over where it stops
+				HttpSession session = peerSessions.get(name);
+				boolean peer = session != null;
+				if (!peer)
+					session = manager.getHttpSession();
+				boolean failover = false;
+				int failovers = 0;
+				for (int attempt = 1; attempt <= DOWNLOAD_ATTEMPTS; attempt++) {
+					byte[] digest = fetch(resource, fileProgress, transfer, session, failover);
+					if (digest == null) {
+						if (isCancelled())
+							return false;
+						if (peer) {
+							ProjectSWG.log("Peer download failed, using update server: " + name);
+							peer = false;
+							session = manager.getHttpSession();
+							failover = true;
+							attempt--;
+							continue;
+						}
+						// progress is in the journal, another mirror carries on from there
+						if (failovers >= session.getMirrorCount() - 1 ||
+								manager.getDownloadJournal().get(name, resource.getSize()) == null)
+							return false;
+						ProjectSWG.log("Failing over to another mirror: " + name);
+						failover = true;
+						failovers++;
+						attempt--;
+						continue;
+					}
+					
+					// verified while streaming, the post update scan won't read it again
+					if (Manager.checksumMatches(digest, resource.getChecksum()))
+						return replaceFinished(resource, fileProgress);
+					
+					ProjectSWG.log(String.format("Checksum mismatch: %s, attempt %s of %s", name, attempt, DOWNLOAD_ATTEMPTS));
+					manager.getDownloadJournal().remove(name);
+					new File(pswgFolder + "/" + name + PART_EXTENSION).delete();
+					setFileProgress(fileProgress, 0);
+					// a bad peer copy doesn't use up an attempt
+					if (peer) {
+						peer = false;
+						session = manager.getHttpSession();
+						attempt--;
+					}
+				}
+				return false;
+			}
+			
+			/*
+			 * a part file the journal has fully written, checked again before it is trusted
+			 */
+			private boolean isFinished(Resource resource)
+			{
+				String name = resource.getName();
+				DownloadSegments entry = manager.getDownloadJournal().get(name, resource.getSize());
+				File part = new File(pswgFolder + "/" + name + PART_EXTENSION);
+				if (entry == null || entry.getCompleted() != resource.getSize() || part.length() != resource.getSize())
 					return false;
+				if (!resource.getChecksum().equals(Manager.getFileChecksum(part))) {
+					ProjectSWG.log("Finished download checksum mismatch: " + name);
+					manager.getDownloadJournal().remove(name);
+					return false;
+				}
+				return true;
+			}
+			
+			/*
+			 * moves a verified part file over the live one, the journal entry goes only once it has
+			 * a running game holds its archives open on windows, then the part file waits in the
+			 * journal as finished and is moved on the next update, which the manager starts when the game closes
+			 */
+			private boolean replaceFinished(Resource resource, long[] fileProgress)
+			{
+				String name = resource.getName();
+				File file = new File(pswgFolder + "/" + name);
+				File part = new File(file.getPath() + PART_EXTENSION);
+				setFileProgress(fileProgress, resource.getDownloadSize());
+				if (Manager.replaceFile(part, file)) {
+					manager.getDownloadJournal().remove(name);
+					setVerified(resource, file, resource.getChecksum());
+					return true;
+				}
 				
-				if (file.length() >= resource.getSize())
-					file.delete();
+				DownloadSegments entry = manager.getDownloadJournal().get(name, resource.getSize());
+				if (entry == null)
+					return false;
+				try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+					checkpoint(entry, channel);
+				} catch (IOException e1) {
+					ProjectSWG.log("Update Error: " + e1.toString());
+					return false;
+				}
+				if (!RateLimiter.isPlaying())
+					return false;
+				ProjectSWG.log("File in use, moving it into place once the game closes: " + name);
+				deferred.add(resource);
+				return true;
+			}
+			
+			private byte[] fetch(Resource resource, long[] fileProgress, long[] transfer, HttpSession session, boolean failover)
+			{
+				if (!isSegmented(resource))
+					return fetchResource(resource, fileProgress, transfer, session, failover);
+				byte[] digest = fetchSegments(resource, fileProgress, transfer, session, failover);
+				if (digest == null && !rangesSupported && !isCancelled()) {
+					ProjectSWG.log("Update server does not support ranges, downloading whole file: " + resource.getName());
+					setFileProgress(fileProgress, 0);
+					digest = fetchResource(resource, fileProgress, transfer, session, failover);
+				}
+				return digest;
+			}
+			
+			/*
+			 * one stream for the whole file, resumed from the journal if the server still has that version
+			 * written into a preallocated part file, the live file is only replaced once verified
+			 * on failover the journal belongs to another mirror, whose Last-Modified may differ
+			 */
+			private byte[] fetchResource(Resource resource, long[] fileProgress, long[] transfer, HttpSession session, boolean failover)
+			{
+				String name = resource.getName();
+				long size = resource.getSize();
+				String path = manager.getPswgFolder().getValue() + "/" + name + PART_EXTENSION;
+				File file = Manager.getLocalResource(path);
+				if (file == null)
+					return null;
 				
-				long downloaded = file.length();
+				DownloadJournal journal = manager.getDownloadJournal();
+				DownloadSegments entry = journal.get(name, size);
+				long downloaded = 0;
+				if (entry != null && entry.getCount() == 1 && (entry.getLastModified() != null || failover) &&
+						entry.getPosition(0) < size && file.length() >= entry.getPosition(0))
+					downloaded = entry.getPosition(0);
 				
+				URLConnection urlConnection = null;
 				try {
-					long total = resource.getSize();
+					MessageDigest md = MessageDigest.getInstance("md5");
 					
-					URL url = new URL(manager.getUpdateServerUrl().getValue() + name);
-					URLConnection urlConnection = url.openConnection();
-					if (!manager.getUpdateServerUsername().getValue().equals("")) {
-						String auth = manager.getUpdateServerUsername().getValue() + ":" + manager.getUpdateServerPassword().getValue();
-						String basicAuth = "Basic " + DatatypeConverter.printBase64Binary(auth.getBytes());
-						urlConnection.setRequestProperty("Authorization", basicAuth);
-					}
-					String resumeDownlaoad = ProjectSWG.PREFS.get("resume_download", "");
-					String[] resumeDownlaoadArray = resumeDownlaoad.split("::");
-
-					if (resumeDownlaoadArray.length == 2)
-						if (resumeDownlaoadArray[0].equals(name)) {
+					long requestStart = System.nanoTime();
+					final long resumeFrom = downloaded;
+					final String lastModified = entry == null ? null : entry.getLastModified();
+					urlConnection = session.open(name, (connection) -> {
+						if (resumeFrom > 0) {
 							ProjectSWG.log("Resuming download: " + name);
-							String lastModified = resumeDownlaoadArray[1];
-							urlConnection.setRequestProperty("If-Range", lastModified);
-							urlConnection.setRequestProperty("Range", "bytes=" + downloaded + "-");
-						};
+							if (!failover)
+								connection.setRequestProperty("If-Range", lastModified);
+							connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+						} else
+							HttpSession.acceptCompressed(connection);
+					});
 					
-					// resume
-					String lastModified = urlConnection.getHeaderField("Last-Modified");
-					ProjectSWG.PREFS.put("resume_download", name + "::" + lastModified);
+					// a full response replaces the partial file, a ranged one continues its digest
+					boolean partial = resumeFrom > 0 && urlConnection instanceof HttpURLConnection &&
+							((HttpURLConnection)urlConnection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+					if (!partial) {
+						downloaded = 0;
+						entry = new DownloadSegments(size, 1);
+						entry.setLastModified(urlConnection.getHeaderField("Last-Modified"));
+						journal.put(name, entry);
+					} else if (!digestExisting(md, file, downloaded))
+						return null;
 					
-					InputStream is = urlConnection.getInputStream();
-					FileOutputStream fos = new FileOutputStream(file, true);
+					final DownloadSegments journalEntry = entry;
+					final long resumedFrom = downloaded;
+					ProjectSWG.log(String.format("Resuming file from: %s -> %s", name, downloaded));
 					
 					byte[] buffer = new byte[Manager.MAX_BUFFER_SIZE];
-					int bytesRead = 0, bytesBuffered = 0;
-	
-					ProjectSWG.log(String.format("Resuming file from: %s -> %s", name, downloaded));
-					while ((bytesRead = is.read(buffer)) > -1) {
-						if (isCancelled()) {
-							updateProgress(-1, 0);
-							fos.close();
-							return false;
+					long[] received = { 0 };
+					long[] checkpointed = { downloaded };
+					boolean completed = false;
+					// decoded bytes land at their offsets in the raw file, so a later range resume still lines up
+					try (InputStream is = HttpSession.decode(urlConnection, RateLimiter.throttle(urlConnection.getInputStream()));
+							RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+						if (!partial)
+							raf.setLength(0);
+						if (raf.length() != size)
+							raf.setLength(size);
+						// anything past the last checkpoint is simply written again
+						FileChannel channel = raf.getChannel();
+						channel.position(downloaded);
+						OutputStream os = Channels.newOutputStream(channel);
+						try {
+							completed = transfer(is, os, md, buffer, () -> isCancelled(), (bytes) -> {
+								recordFirstByte(transfer);
+								received[0] = bytes;
+								setFileProgress(fileProgress, resumedFrom + bytes);
+								journalEntry.setPosition(0, resumedFrom + bytes);
+								if (resumedFrom + bytes - checkpointed[0] >= CHECKPOINT_INTERVAL) {
+									checkpoint(journalEntry, channel);
+									checkpointed[0] = resumedFrom + bytes;
+								}
+							});
+						} finally {
+							if (!completed)
+								checkpoint(journalEntry, channel);
 						}
-						fos.write(buffer, 0, bytesRead);
-						bytesBuffered += bytesRead;
-						downloaded += bytesRead;
-						updateProgress(downloaded, total);
-						if (bytesBuffered > 1024 * 1024) {
-							bytesBuffered = 0;
-							fos.flush();
+					}
+					
+					recordRequest(transfer, urlConnection, received[0], System.nanoTime() - requestStart);
+					session.reportTransfer(urlConnection, received[0], System.nanoTime() - requestStart);
+					if (HttpSession.isCompressed(urlConnection))
+						ProjectSWG.log(String.format("Compressed download: %s, %s -> %s bytes", name, urlConnection.getContentLengthLong(), received[0]));
+					if (!completed)
+						return null;
+					return md.digest();
+					
+				} catch (IOException | NoSuchAlgorithmException e1) {
+					ProjectSWG.log("Update Error: " + e1.toString());
+					session.reportFailure(urlConnection);
+					return null;
+				}
+			}
+			
+			/*
+			 * positions are taken before the data is forced, so the journal never runs ahead of the file
+			 */
+			private void checkpoint(DownloadSegments segments, FileChannel channel)
+			{
+				long[] snapshot = segments.snapshot();
+				try {
+					channel.force(false);
+				} catch (IOException e1) {
+					ProjectSWG.log("Checkpoint Error: " + e1.toString());
+					return;
+				}
+				segments.setDurable(snapshot);
+				manager.getDownloadJournal().checkpoint();
+			}
+			
+			private boolean isSegmented(Resource resource)
+			{
+				return rangesSupported && !RateLimiter.isBackground() && getSegments() > 1 && resource.getSize() >= SEGMENT_THRESHOLD;
+			}
+			
+			/*
+			 * fetches byte ranges of one resource in parallel, each written at its offset
+			 * segment positions are kept in the journal so every range resumes on its own
+			 * the digest is read back from the finished file
+			 */
+			private byte[] fetchSegments(Resource resource, long[] fileProgress, long[] transfer, HttpSession session, boolean failover)
+			{
+				String name = resource.getName();
+				long size = resource.getSize();
+				File file = Manager.getLocalResource(pswgFolder + "/" + name + PART_EXTENSION);
+				if (file == null)
+					return null;
+				
+				// a single stream entry resumes here too, its range simply continues
+				DownloadJournal journal = manager.getDownloadJournal();
+				DownloadSegments segments = journal.get(name, size);
+				if (segments != null && (file.length() == size || segments.getCount() == 1 && file.length() >= segments.getPosition(0)))
+					ProjectSWG.log(String.format("Resuming segments: %s -> %s", name, segments.getCompleted()));
+				else
+					segments = null;
+				
+				// a file changed on the server since the segments were saved starts over once
+				for (int pass = 1; ; pass++) {
+					if (segments == null) {
+						segments = new DownloadSegments(size, getSegments());
+						journal.put(name, segments);
+						try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+							raf.setLength(0);
+							raf.setLength(size);
+						} catch (IOException e1) {
+							ProjectSWG.log("Update Error: " + e1.toString());
+							return null;
 						}
 					}
+					setFileProgress(fileProgress, segments.getCompleted());
 					
-					fos.close();
-					is.close();
-					resource.setDlFlag(false);
+					final DownloadSegments state = segments;
+					ArrayList<Future<Boolean>> futures = new ArrayList<>();
+					Future<byte[]> digest = null;
+					try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+						for (int i = 0; i < state.getCount(); i++) {
+							final int segment = i;
+							futures.add(segmentExecutor.submit(() -> fetchSegment(name, session, channel, state, segment, fileProgress, transfer, failover)));
+						}
+						digest = segmentExecutor.submit(() -> digestWritten(file, state));
+						boolean success = true;
+						for (Future<Boolean> future : futures)
+							success &= future.get();
+						if (success)
+							return digest.get();
+						if (!state.isStale()) {
+							checkpoint(state, channel);
+							return null;
+						}
+						journal.remove(name);
+						if (pass > 1 || !rangesSupported || isCancelled())
+							return null;
+						ProjectSWG.log("Resource changed on the server, restarting segments: " + name);
+						segments = null;
+						
+					} catch (IOException | ExecutionException e1) {
+						ProjectSWG.log("Update Error: " + e1.toString());
+						return null;
+						
+					} catch (InterruptedException | CancellationException e1) {
+						for (Future<Boolean> future : futures)
+							future.cancel(true);
+						return null;
+						
+					} finally {
+						if (digest != null)
+							digest.cancel(true);
+					}
+				}
+			}
+			
+			/*
+			 * md5 can't be put together from per segment digests, so this follows the written prefix
+			 * and hashes it from the page cache while the later segments still stream
+			 * only what the last segment to finish leaves behind is read after the download
+			 */
+			private byte[] digestWritten(File file, DownloadSegments segments) throws IOException, NoSuchAlgorithmException
+			{
+				MessageDigest md = MessageDigest.getInstance("md5");
+				ByteBuffer buffer = Manager.getHashBuffer(Manager.HASH_BUFFER_SIZE);
+				long size = segments.getSize();
+				long hashed = 0;
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					while (hashed < size) {
+						long written = segments.getWritten();
+						if (written <= hashed) {
+							try {
+								Thread.sleep(DIGEST_POLL_MILLIS);
+							} catch (InterruptedException e1) {
+								return null;
+							}
+							continue;
+						}
+						buffer.clear();
+						if (buffer.capacity() > written - hashed)
+							buffer.limit((int)(written - hashed));
+						int read = channel.read(buffer, hashed);
+						if (read < 0)
+							return null;
+						buffer.flip();
+						md.update(buffer);
+						hashed += read;
+					}
+				}
+				return md.digest();
+			}
+			
+			private boolean fetchSegment(String name, HttpSession session, FileChannel channel, DownloadSegments segments, int segment, long[] fileProgress, long[] transfer, boolean failover)
+			{
+				long start = segments.getPosition(segment);
+				long end = segments.getEnd(segment);
+				if (start > end)
 					return true;
+				
+				URLConnection urlConnection = null;
+				try {
+					long requestStart = System.nanoTime();
+					String lastModified = segments.getLastModified();
+					urlConnection = session.open(name, (connection) -> {
+						connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+						if (lastModified != null && !failover)
+							connection.setRequestProperty("If-Range", lastModified);
+					});
+					
+					// a full response means no range support, or the file changed since the segments were saved
+					if (!(urlConnection instanceof HttpURLConnection) ||
+							((HttpURLConnection)urlConnection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+						HttpSession.discard(urlConnection);
+						// a peer's answer says nothing about the update server
+						if (lastModified == null && session == manager.getHttpSession())
+							rangesSupported = false;
+						segments.setStale();
+						return false;
+					}
+					segments.setLastModified(urlConnection.getHeaderField("Last-Modified"));
+					
+					byte[] buffer = new byte[Manager.MAX_BUFFER_SIZE];
+					long position = start, saved = start;
+					try (InputStream is = RateLimiter.throttle(urlConnection.getInputStream())) {
+						int bytesRead;
+						while (position <= end && (bytesRead = is.read(buffer, 0, (int)Math.min(buffer.length, end + 1 - position))) > -1) {
+							if (isCancelled())
+								return false;
+							if (position == start)
+								recordFirstByte(transfer);
+							channel.write(ByteBuffer.wrap(buffer, 0, bytesRead), position);
+							position += bytesRead;
+							segments.setPosition(segment, position);
+							addFileProgress(fileProgress, bytesRead);
+							if (position - saved >= CHECKPOINT_INTERVAL) {
+								checkpoint(segments, channel);
+								saved = position;
+							}
+						}
+					}
+					recordRequest(transfer, urlConnection, position - start, System.nanoTime() - requestStart);
+					session.reportTransfer(urlConnection, position - start, System.nanoTime() - requestStart);
+					return position == end + 1;
 					
 				} catch (IOException e1) {
-					ProjectSWG.log("Update Error: " + e1.toString());
+					ProjectSWG.log("Segment Error: " + e1.toString());
+					session.reportFailure(urlConnection);
+					return false;
+				}
+			}
+			
+			/*
+			 * rebuilds a changed resource from the local copy, if the server
+			 * published a delta from the version last scanned to the listed one
+			 */
+			private boolean patchResource(Resource resource, long[] fileProgress, long[] transfer)
+			{
+				String name = resource.getName();
+				File file = new File(pswgFolder + "/" + name);
+				String oldChecksum = manager.getScanCache().get(name, ScanCache.readAttributes(file));
+				if (oldChecksum == null || oldChecksum.equals(resource.getChecksum()))
+					return false;
+				
+				File patched = new File(file.getPath() + DeltaPatch.PATCH_EXTENSION);
+				boolean completed = false;
+				try {
+					long requestStart = System.nanoTime();
+					URLConnection urlConnection = manager.getHttpSession().open(DeltaPatch.getDeltaName(name, oldChecksum, resource.getChecksum()));
+					if (urlConnection instanceof HttpURLConnection &&
+							((HttpURLConnection)urlConnection).getResponseCode() != HttpURLConnection.HTTP_OK) {
+						HttpSession.discard(urlConnection);
+						return false;
+					}
+					
+					MessageDigest md = MessageDigest.getInstance("md5");
+					DeltaPatch patch;
+					try (InputStream is = new BufferedInputStream(RateLimiter.throttle(urlConnection.getInputStream()));
+							FileChannel base = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+							OutputStream os = new BufferedOutputStream(new FileOutputStream(patched), Manager.HASH_BUFFER_SIZE)) {
+						patch = new DeltaPatch(base);
+						completed = patch.apply(is, os, md, () -> isCancelled(), (bytes) -> {
+							recordFirstByte(transfer);
+							setFileProgress(fileProgress, Math.min(bytes, resource.getSize()));
+						});
+					}
+					recordRequest(transfer, urlConnection, patch.getDeltaBytes(), System.nanoTime() - requestStart);
+					if (!completed)
+						return false;
+					if (!Manager.checksumMatches(md.digest(), resource.getChecksum())) {
+						ProjectSWG.log("Patched checksum mismatch: " + name);
+						completed = false;
+						return false;
+					}
+					
+					if (!Manager.replaceFile(patched, file)) {
+						completed = false;
+						return false;
+					}
+					setVerified(resource, file, resource.getChecksum());
+					ProjectSWG.log(String.format("Patched %s from a %s byte delta", name, patch.getDeltaBytes()));
+					return true;
+					
+				} catch (IOException | NoSuchAlgorithmException e1) {
+					ProjectSWG.log("Delta Error: " + e1.toString());
+					completed = false;
 					return false;
 					
 				} finally {
-					updateProgress(-1, 0);
+					if (!completed) {
+						patched.delete();
+						setFileProgress(fileProgress, 0);
+					}
 				}
 			}
+			
+			/*
+			 * fetch only the corrupt blocks found by the scan, then verify the whole file
+			 */
+			private boolean repairResource(Resource resource, long[] fileProgress, long[] transfer)
+			{
+				String name = resource.getName();
+				File file = new File(manager.getPswgFolder().getValue() + "/" + name);
+				if (file.length() != resource.getSize())
+					return false;
+				
+				long size = resource.getSize();
+				long blockSize = resource.getRepairBlockSize();
+				long repaired = 0;
+				ProjectSWG.log(String.format("Repairing %s blocks of %s: %s bytes", resource.getRepairBlocks().size(), name, resource.getDownloadSize()));
+				
+				byte[] buffer = new byte[Manager.MAX_BUFFER_SIZE];
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+					for (int block : resource.getRepairBlocks()) {
+						long start = block * blockSize;
+						long end = Math.min(start + blockSize, size) - 1;
+						
+						long requestStart = System.nanoTime();
+						URLConnection urlConnection = manager.getHttpSession().open(name, (connection) -> {
+							connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+						});
+						if (!(urlConnection instanceof HttpURLConnection) ||
+								((HttpURLConnection)urlConnection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+							HttpSession.discard(urlConnection);
+							ProjectSWG.log("Update server does not support ranges");
+							return false;
+						}
+						
+						long position = start;
+						try (InputStream is = RateLimiter.throttle(urlConnection.getInputStream())) {
+							int bytesRead;
+							while (position <= end && (bytesRead = is.read(buffer, 0, (int)Math.min(buffer.length, end + 1 - position))) > -1) {
+								if (isCancelled())
+									return false;
+								recordFirstByte(transfer);
+								channel.write(ByteBuffer.wrap(buffer, 0, bytesRead), position);
+								position += bytesRead;
+								repaired += bytesRead;
+								setFileProgress(fileProgress, repaired);
+							}
+						}
+						recordRequest(transfer, urlConnection, position - start, System.nanoTime() - requestStart);
+						if (position != end + 1)
+							return false;
+					}
+				} catch (IOException e1) {
+					ProjectSWG.log("Repair Error: " + e1.toString());
+					return false;
+				}
+				
+				String checksum = Manager.getFileChecksum(file);
+				if (checksum == null || !checksum.equals(resource.getChecksum()))
+					return false;
+				
+				setVerified(resource, file, checksum);
+				ProjectSWG.log("Repaired: " + name);
+				return true;
+			}
+			
+			private boolean digestExisting(MessageDigest md, File file, long length)
+			{
+				ByteBuffer buffer = ByteBuffer.allocate(Manager.HASH_BUFFER_SIZE);
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+					while (length > 0) {
+						buffer.clear();
+						if (buffer.capacity() > length)
+							buffer.limit((int)length);
+						int read = channel.read(buffer);
+						if (read < 0)
+							return false;
+						md.update(buffer.array(), 0, read);
+						length -= read;
+					}
+				} catch (IOException e1) {
+					ProjectSWG.log("Error reading partial download: " + e1.toString());
+					return false;
+				}
+				return true;
+			}
 		};
 	}
+	
+	public ObservableMap<String, Long> getFiles() { return files; }
 }
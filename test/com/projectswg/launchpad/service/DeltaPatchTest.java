@@ -0,0 +1,230 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaPatchTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private byte[] old;
+	private FileChannel base;
+	private ByteArrayOutputStream delta;
+	private DataOutputStream out;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		// larger than the copy buffer so a copy takes several reads
+		old = new byte[Manager.HASH_BUFFER_SIZE * 2 + 123];
+		new Random(1).nextBytes(old);
+		File file = folder.newFile("old.tre");
+		Files.write(file.toPath(), old);
+		base = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		
+		delta = new ByteArrayOutputStream();
+		out = new DataOutputStream(delta);
+		out.write(DeltaPatch.MAGIC);
+	}
+	
+	@After
+	public void tearDown() throws IOException
+	{
+		base.close();
+	}
+	
+	private void copy(long offset, long length) throws IOException
+	{
+		out.write(DeltaPatch.OP_COPY);
+		out.writeLong(offset);
+		out.writeLong(length);
+	}
+	
+	private void data(byte[] bytes) throws IOException
+	{
+		out.write(DeltaPatch.OP_DATA);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private void end() throws IOException
+	{
+		out.write(DeltaPatch.OP_END);
+	}
+	
+	private MessageDigest md5()
+	{
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e1) {
+			throw new AssertionError(e1);
+		}
+	}
+	
+	private byte[] apply(DeltaPatch patch) throws IOException
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		assertTrue(patch.apply(new ByteArrayInputStream(delta.toByteArray()), os, md5(), () -> false, (written) -> {}));
+		return os.toByteArray();
+	}
+	
+	private void assertMalformed(String message)
+	{
+		try {
+			apply(new DeltaPatch(base));
+			fail("applied a malformed delta");
+		} catch (IOException e1) {
+			assertEquals(message, e1.getMessage());
+		}
+	}
+	
+	@Test
+	public void rebuildsFile() throws IOException
+	{
+		byte[] literal = "new bytes".getBytes("US-ASCII");
+		copy(0, 100);
+		data(literal);
+		copy(Manager.HASH_BUFFER_SIZE - 10, Manager.HASH_BUFFER_SIZE + 20);
+		copy(old.length - 1, 1);
+		end();
+		
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(old, 0, 100);
+		expected.write(literal);
+		expected.write(old, Manager.HASH_BUFFER_SIZE - 10, Manager.HASH_BUFFER_SIZE + 20);
+		expected.write(old, old.length - 1, 1);
+		
+		DeltaPatch patch = new DeltaPatch(base);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		MessageDigest md = md5();
+		ArrayList<Long> progress = new ArrayList<>();
+		assertTrue(patch.apply(new ByteArrayInputStream(delta.toByteArray()), os, md, () -> false, (written) -> progress.add(written)));
+		assertArrayEquals(expected.toByteArray(), os.toByteArray());
+		assertArrayEquals(md5().digest(expected.toByteArray()), md.digest());
+		assertEquals(expected.size(), patch.getWritten());
+		assertEquals(delta.size(), patch.getDeltaBytes());
+		assertEquals(Arrays.asList(100L, 109L, 109L + Manager.HASH_BUFFER_SIZE + 20, (long)expected.size()), progress);
+	}
+	
+	@Test
+	public void emptyDelta() throws IOException
+	{
+		end();
+		assertEquals(0, apply(new DeltaPatch(base)).length);
+	}
+	
+	@Test
+	public void cancelled() throws IOException
+	{
+		copy(0, 100);
+		end();
+		DeltaPatch patch = new DeltaPatch(base);
+		assertFalse(patch.apply(new ByteArrayInputStream(delta.toByteArray()), new ByteArrayOutputStream(), md5(), () -> true, (written) -> {}));
+		assertEquals(0, patch.getWritten());
+	}
+	
+	@Test
+	public void deltaName()
+	{
+		assertEquals("a.tre.old.new.delta", DeltaPatch.getDeltaName("a.tre", "old", "new"));
+	}
+	
+	@Test
+	public void badMagic() throws IOException
+	{
+		delta.reset();
+		out.write("PSWGDLT2".getBytes("US-ASCII"));
+		end();
+		assertMalformed("Not a delta");
+	}
+	
+	@Test
+	public void copyOutOfRange() throws IOException
+	{
+		copy(old.length - 10, 11);
+		end();
+		assertMalformed("Delta copy out of range");
+	}
+	
+	@Test
+	public void negativeCopy() throws IOException
+	{
+		copy(-1, 10);
+		end();
+		assertMalformed("Delta copy out of range");
+	}
+	
+	@Test
+	public void negativeData() throws IOException
+	{
+		out.write(DeltaPatch.OP_DATA);
+		out.writeInt(-1);
+		assertMalformed("Delta data length negative");
+	}
+	
+	@Test
+	public void truncatedData() throws IOException
+	{
+		out.write(DeltaPatch.OP_DATA);
+		out.writeInt(10);
+		out.write(new byte[5]);
+		assertMalformed("Delta truncated");
+	}
+	
+	@Test
+	public void unknownOp() throws IOException
+	{
+		out.write('X');
+		assertMalformed("Unknown delta op: " + (int)'X');
+	}
+	
+	@Test
+	public void missingEnd() throws IOException
+	{
+		copy(0, 10);
+		assertMalformed("Unknown delta op: -1");
+	}
+}
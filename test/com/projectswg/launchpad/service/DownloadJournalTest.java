@@ -0,0 +1,135 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadJournalTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void checkpointRoundTrip()
+	{
+		String path = folder.getRoot().getPath();
+		DownloadJournal journal = new DownloadJournal(path);
+		DownloadSegments segments = DownloadSegments.decode("0:99:40,100:199:100", "", 200);
+		segments.setLastModified("Sat, 01 Jan 2000 00:00:00 GMT");
+		journal.put("a.tre", segments);
+		journal.put("b.tre", DownloadSegments.decode("0:9:10", "", 10));
+		assertTrue(journal.checkpoint());
+		assertFalse(new File(path, DownloadJournal.JOURNAL_FILE + ".tmp").exists());
+		
+		DownloadJournal loaded = new DownloadJournal(path);
+		DownloadSegments a = loaded.get("a.tre", 200);
+		assertNotNull(a);
+		assertEquals("0:99:40,100:199:100", a.encode());
+		assertEquals("Sat, 01 Jan 2000 00:00:00 GMT", a.getLastModified());
+		DownloadSegments b = loaded.get("b.tre", 10);
+		assertNotNull(b);
+		assertNull(b.getLastModified());
+		assertTrue(loaded.hasFinished());
+	}
+	
+	@Test
+	public void checkpointKeepsOnlyDurablePositions()
+	{
+		String path = folder.getRoot().getPath();
+		DownloadJournal journal = new DownloadJournal(path);
+		DownloadSegments segments = DownloadSegments.decode("0:99:0", "", 100);
+		journal.put("a.tre", segments);
+		segments.setPosition(0, 60);
+		journal.checkpoint();
+		assertEquals("0:99:0", new DownloadJournal(path).get("a.tre", 100).encode());
+		
+		segments.setDurable(segments.snapshot());
+		journal.checkpoint();
+		assertEquals("0:99:60", new DownloadJournal(path).get("a.tre", 100).encode());
+	}
+	
+	@Test
+	public void getChecksSize()
+	{
+		DownloadJournal journal = new DownloadJournal(folder.getRoot().getPath());
+		journal.put("a.tre", DownloadSegments.decode("0:99:0", "", 100));
+		assertNotNull(journal.get("a.tre", 100));
+		assertNull(journal.get("a.tre", 101));
+		assertNull(journal.get("b.tre", 100));
+		assertFalse(journal.hasFinished());
+	}
+	
+	@Test
+	public void removeRewritesJournal()
+	{
+		String path = folder.getRoot().getPath();
+		DownloadJournal journal = new DownloadJournal(path);
+		journal.put("a.tre", DownloadSegments.decode("0:99:0", "", 100));
+		journal.put("b.tre", DownloadSegments.decode("0:99:0", "", 100));
+		journal.checkpoint();
+		journal.remove("a.tre");
+		
+		DownloadJournal loaded = new DownloadJournal(path);
+		assertNull(loaded.get("a.tre", 100));
+		assertNotNull(loaded.get("b.tre", 100));
+	}
+	
+	@Test
+	public void loadSkipsBadLines() throws IOException
+	{
+		String path = folder.getRoot().getPath();
+		Files.write(new File(path, DownloadJournal.JOURNAL_FILE).toPath(), (
+				"a.tre\t100\t\t0:99:50\n" +
+				"short line\n" +
+				"b.tre\t100\t\t0:49:0\n" +
+				"c.tre\t10\tlast\t0:9:x\n" +
+				"d.tre\t10\tlast\t0:9:3\n").getBytes(StandardCharsets.UTF_8));
+		
+		DownloadJournal journal = new DownloadJournal(path);
+		assertEquals("0:99:50", journal.get("a.tre", 100).encode());
+		assertNull(journal.get("b.tre", 100));
+		assertNull(journal.get("c.tre", 10));
+		assertEquals("last", journal.get("d.tre", 10).getLastModified());
+	}
+	
+	@Test
+	public void loadDropsJournalWithBadSize() throws IOException
+	{
+		String path = folder.getRoot().getPath();
+		Files.write(new File(path, DownloadJournal.JOURNAL_FILE).toPath(), (
+				"a.tre\t100\t\t0:99:50\n" +
+				"b.tre\tbig\t\t0:99:50\n").getBytes(StandardCharsets.UTF_8));
+		
+		assertNull(new DownloadJournal(path).get("a.tre", 100));
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DownloadSegmentsTest
+{
+	private static final long MB = 1024 * 1024;
+	
+	@Test
+	public void splitCoversTheFile()
+	{
+		long size = 100 * MB + 7;
+		DownloadSegments segments = new DownloadSegments(size, 4);
+		assertEquals(4, segments.getCount());
+		assertEquals(size, segments.getSize());
+		assertEquals(0, segments.getStart(0));
+		for (int i = 1; i < segments.getCount(); i++)
+			assertEquals(segments.getEnd(i - 1) + 1, segments.getStart(i));
+		assertEquals(size - 1, segments.getEnd(3));
+		for (int i = 0; i < segments.getCount(); i++)
+			assertEquals(segments.getStart(i), segments.getPosition(i));
+	}
+	
+	@Test
+	public void splitKeepsMinimumSegmentSize()
+	{
+		// 40 MB holds 3 segments of at least MIN_SEGMENT_SIZE, not 8
+		assertEquals(3, new DownloadSegments(40 * MB, 8).getCount());
+		assertEquals(1, new DownloadSegments(MB, 8).getCount());
+		assertEquals(1, new DownloadSegments(100 * MB, 0).getCount());
+	}
+	
+	@Test
+	public void encodeOnlyRecordsDurablePositions()
+	{
+		DownloadSegments segments = new DownloadSegments(32 * MB, 2);
+		segments.setPosition(0, 100);
+		segments.setPosition(1, 16 * MB + 200);
+		assertEquals("0:16777215:0,16777216:33554431:16777216", segments.encode());
+		
+		long[] snapshot = segments.snapshot();
+		assertArrayEquals(new long[] { 100, 16 * MB + 200 }, snapshot);
+		segments.setPosition(0, 500);
+		segments.setDurable(snapshot);
+		assertEquals("0:16777215:100,16777216:33554431:16777416", segments.encode());
+	}
+	
+	@Test
+	public void decodeRoundTrip()
+	{
+		DownloadSegments segments = new DownloadSegments(48 * MB, 3);
+		segments.setPosition(0, 1000);
+		segments.setPosition(2, 40 * MB);
+		segments.setDurable(segments.snapshot());
+		segments.setLastModified("Sat, 01 Jan 2000 00:00:00 GMT");
+		
+		DownloadSegments decoded = DownloadSegments.decode(segments.encode(), segments.getLastModified(), segments.getSize());
+		assertNotNull(decoded);
+		assertEquals(segments.encode(), decoded.encode());
+		assertEquals("Sat, 01 Jan 2000 00:00:00 GMT", decoded.getLastModified());
+		assertEquals(1000, decoded.getPosition(0));
+		assertEquals(16 * MB, decoded.getPosition(1));
+		assertEquals(40 * MB, decoded.getPosition(2));
+		assertEquals(segments.getCompleted(), decoded.getCompleted());
+	}
+	
+	@Test
+	public void decodeEmptyLastModified()
+	{
+		DownloadSegments decoded = DownloadSegments.decode("0:9:5", "", 10);
+		assertNotNull(decoded);
+		assertNull(decoded.getLastModified());
+		decoded.setLastModified("first");
+		decoded.setLastModified("second");
+		assertEquals("first", decoded.getLastModified());
+	}
+	
+	@Test
+	public void decodeRejectsBadRanges()
+	{
+		// wrong size, gap, overlap, position out of range, bad fields
+		assertNull(DownloadSegments.decode("0:9:0", "", 11));
+		assertNull(DownloadSegments.decode("0:4:0,6:9:6", "", 10));
+		assertNull(DownloadSegments.decode("0:5:0,5:9:5", "", 10));
+		assertNull(DownloadSegments.decode("0:9:11", "", 10));
+		assertNull(DownloadSegments.decode("2:9:2", "", 8));
+		assertNull(DownloadSegments.decode("0:9", "", 10));
+		assertNull(DownloadSegments.decode("0:9:x", "", 10));
+		assertNull(DownloadSegments.decode("", "", 0));
+	}
+	
+	@Test
+	public void writtenStopsAtFirstUnfinishedSegment()
+	{
+		DownloadSegments segments = DownloadSegments.decode("0:9:0,10:19:10,20:29:20", "", 30);
+		assertEquals(0, segments.getWritten());
+		segments.setPosition(1, 20);
+		assertEquals(0, segments.getWritten());
+		segments.setPosition(0, 4);
+		assertEquals(4, segments.getWritten());
+		segments.setPosition(0, 10);
+		assertEquals(20, segments.getWritten());
+		segments.setPosition(2, 30);
+		assertEquals(30, segments.getWritten());
+		assertEquals(30, segments.getCompleted());
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpSessionTest
+{
+	private HttpServer server;
+	private String base;
+	
+	@Before
+	public void start() throws IOException
+	{
+		// /up/ answers 200, /down/ answers 503
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", (exchange) -> {
+			exchange.sendResponseHeaders(exchange.getRequestURI().getPath().contains("/down") ? 503 : 200, -1);
+			exchange.close();
+		});
+		server.start();
+		base = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+	}
+	
+	@After
+	public void stop()
+	{
+		server.stop(0);
+	}
+	
+	private String mirror(HttpSession session) throws IOException
+	{
+		URLConnection urlConnection = session.open("file");
+		HttpSession.discard(urlConnection);
+		String path = urlConnection.getURL().getPath();
+		return path.substring(0, path.lastIndexOf('/') + 1);
+	}
+	
+	@Test
+	public void parsesMirrorList()
+	{
+		assertEquals(1, new HttpSession("http://a/", "", "").getMirrorCount());
+		assertEquals(3, new HttpSession(" http://a/ ;http://b/\n\thttp://c/; ", "", "").getMirrorCount());
+		assertEquals(2, new HttpSession("http://a/;;http://b/", "", "").getMirrorCount());
+		assertEquals(1, new HttpSession("", "", "").getMirrorCount());
+	}
+	
+	@Test
+	public void authorization()
+	{
+		assertNull(HttpSession.getAuthorization("", "secret"));
+		assertEquals("Basic dXNlcjpwYXNz", HttpSession.getAuthorization("user", "pass"));
+	}
+	
+	@Test
+	public void roundRobin() throws IOException
+	{
+		HttpSession session = new HttpSession(base + "/up1/ " + base + "/up2/", "", "");
+		String first = mirror(session);
+		String second = mirror(session);
+		assertEquals(first.equals("/up1/") ? "/up2/" : "/up1/", second);
+		assertEquals(first, mirror(session));
+		assertEquals(second, mirror(session));
+	}
+	
+	@Test
+	public void failsOverAndSkipsFailedMirror() throws IOException
+	{
+		HttpSession session = new HttpSession(base + "/down/ " + base + "/up/", "", "");
+		for (int i = 0; i < 4; i++)
+			assertEquals("/up/", mirror(session));
+	}
+	
+	@Test
+	public void refusedMirrorFailsOver() throws IOException
+	{
+		// a port nothing listens on any more
+		int port;
+		try (ServerSocket closed = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+			port = closed.getLocalPort();
+		}
+		HttpSession session = new HttpSession("http://127.0.0.1:" + port + "/gone/ " + base + "/up/", "", "");
+		for (int i = 0; i < 3; i++)
+			assertEquals("/up/", mirror(session));
+	}
+	
+	@Test
+	public void reportedFailureIsSkipped() throws IOException
+	{
+		HttpSession session = new HttpSession(base + "/up1/ " + base + "/up2/", "", "");
+		URLConnection urlConnection = session.open("file");
+		HttpSession.discard(urlConnection);
+		String failed = urlConnection.getURL().getPath().replace("file", "");
+		session.reportFailure(urlConnection);
+		for (int i = 0; i < 3; i++)
+			assertEquals(failed.equals("/up1/") ? "/up2/" : "/up1/", mirror(session));
+	}
+	
+	@Test
+	public void allDownPicksSoonestBack() throws IOException, InterruptedException
+	{
+		HttpSession session = new HttpSession(base + "/up1/ " + base + "/up2/", "", "");
+		URLConnection urlConnection = session.open("file");
+		HttpSession.discard(urlConnection);
+		String first = urlConnection.getURL().getPath().replace("file", "");
+		session.reportFailure(urlConnection);
+		Thread.sleep(5);
+		urlConnection = session.open("file");
+		HttpSession.discard(urlConnection);
+		session.reportFailure(urlConnection);
+		assertEquals(first, mirror(session));
+	}
+	
+	@Test
+	public void slowMirrorIsLeftOut() throws IOException
+	{
+		HttpSession session = new HttpSession(base + "/up1/ " + base + "/up2/", "", "");
+		URLConnection fast = session.open("file");
+		URLConnection slow = session.open("file");
+		HttpSession.discard(fast);
+		HttpSession.discard(slow);
+		session.reportTransfer(fast, 1000000, 1000000000L);
+		session.reportTransfer(slow, 1000, 1000000000L);
+		String expected = fast.getURL().getPath().replace("file", "");
+		for (int i = 0; i < 4; i++)
+			assertEquals(expected, mirror(session));
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class PeerCacheTest
+{
+	@Test
+	public void parsesRange()
+	{
+		assertArrayEquals(new long[] { 100, 199 }, PeerCache.parseRange("bytes=100-199", 1000));
+		assertArrayEquals(new long[] { 0, 0 }, PeerCache.parseRange("bytes=0-0", 1000));
+		assertArrayEquals(new long[] { 500, 999 }, PeerCache.parseRange("bytes=500-", 1000));
+		assertArrayEquals(new long[] { 999, 999 }, PeerCache.parseRange("bytes=999-999", 1000));
+	}
+	
+	@Test
+	public void clampsRangeEnd()
+	{
+		assertArrayEquals(new long[] { 500, 999 }, PeerCache.parseRange("bytes=500-5000", 1000));
+	}
+	
+	@Test
+	public void unsatisfiableRange()
+	{
+		assertSame(PeerCache.UNSATISFIABLE, PeerCache.parseRange("bytes=1000-", 1000));
+		assertSame(PeerCache.UNSATISFIABLE, PeerCache.parseRange("bytes=200-100", 1000));
+		assertSame(PeerCache.UNSATISFIABLE, PeerCache.parseRange("bytes=0-", 0));
+	}
+	
+	@Test
+	public void wholeFileForOtherRanges()
+	{
+		// no header, other units, multiple ranges, suffix ranges and garbage
+		assertNull(PeerCache.parseRange(null, 1000));
+		assertNull(PeerCache.parseRange("items=0-10", 1000));
+		assertNull(PeerCache.parseRange("bytes=0-10,20-30", 1000));
+		assertNull(PeerCache.parseRange("bytes=-500", 1000));
+		assertNull(PeerCache.parseRange("bytes=a-b", 1000));
+		assertNull(PeerCache.parseRange("bytes=10", 1000));
+		assertNull(PeerCache.parseRange("bytes=1-2-3", 1000));
+	}
+	
+	@Test
+	public void authority() throws UnknownHostException
+	{
+		assertEquals("192.168.1.5:44453", PeerCache.getAuthority(InetAddress.getByName("192.168.1.5"), 44453));
+		assertEquals("[0:0:0:0:0:0:0:1]:80", PeerCache.getAuthority(InetAddress.getByName("::1"), 80));
+	}
+	
+	@Test
+	public void tokenIsBoundToKeyNonceAndAuthority()
+	{
+		byte[] key = new byte[32];
+		byte[] other = new byte[32];
+		other[0] = 1;
+		String token = PeerCache.getToken(key, "nonce", "192.168.1.5:44453");
+		assertEquals(64, token.length());
+		assertEquals(token, PeerCache.getToken(key, "nonce", "192.168.1.5:44453"));
+		assertNotEquals(token, PeerCache.getToken(other, "nonce", "192.168.1.5:44453"));
+		assertNotEquals(token, PeerCache.getToken(key, "other", "192.168.1.5:44453"));
+		assertNotEquals(token, PeerCache.getToken(key, "nonce", "192.168.1.6:44453"));
+		assertNull(PeerCache.getToken(null, "nonce", "192.168.1.5:44453"));
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * 
+ * This file is part of ProjectSWG Launchpad.
+ *
+ * ProjectSWG Launchpad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * ProjectSWG Launchpad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ProjectSWG Launchpad.  If not, see <http://www.gnu.org/licenses/>.      
+ *
+ */
+
+package com.projectswg.launchpad.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RateLimiterTest
+{
+	private static final long MILLIS = 1000000;
+	
+	private final AtomicLong rate = new AtomicLong(1000000);
+	private final AtomicLong clock = new AtomicLong(0);
+	private final RateLimiter limiter = new RateLimiter(() -> rate.get(), () -> clock.get());
+	
+	@Test
+	public void startsEmpty()
+	{
+		assertEquals(100 * MILLIS, limiter.reserve(100000));
+	}
+	
+	@Test
+	public void debtIsPaidOffOverTime()
+	{
+		assertEquals(100 * MILLIS, limiter.reserve(100000));
+		clock.addAndGet(60 * MILLIS);
+		assertEquals(40 * MILLIS, limiter.reserve(0));
+		clock.addAndGet(40 * MILLIS);
+		assertEquals(0, limiter.reserve(0));
+		assertEquals(50 * MILLIS, limiter.reserve(50000));
+	}
+	
+	@Test
+	public void refillIsCappedAtBurst()
+	{
+		clock.addAndGet(10000 * MILLIS);
+		// BURST_MILLIS of tokens, however long it was idle
+		assertEquals(0, limiter.reserve(1000000 * RateLimiter.BURST_MILLIS / 1000));
+		assertEquals(1 * MILLIS, limiter.reserve(1000));
+	}
+	
+	@Test
+	public void rateIsReadOnEveryReserve()
+	{
+		assertEquals(100 * MILLIS, limiter.reserve(100000));
+		rate.set(2000000);
+		assertEquals(50 * MILLIS, limiter.reserve(0));
+	}
+	
+	@Test
+	public void unlimitedNeverWaitsAndForgetsDebt()
+	{
+		limiter.reserve(1000000);
+		rate.set(0);
+		assertEquals(0, limiter.reserve(Long.MAX_VALUE / 2));
+		rate.set(1000000);
+		assertEquals(0, limiter.reserve(0));
+	}
+	
+	@Test
+	public void acquireSleepsOffDebt() throws InterruptedIOException
+	{
+		RateLimiter limiter = new RateLimiter(() -> 1000000);
+		long start = System.nanoTime();
+		limiter.acquire(50000);
+		assertTrue(System.nanoTime() - start >= 45 * MILLIS);
+	}
+	
+	@Test
+	public void cap()
+	{
+		assertEquals(200, RateLimiter.cap(0, 200));
+		assertEquals(500, RateLimiter.cap(500, 0));
+		assertEquals(200, RateLimiter.cap(500, 200));
+		assertEquals(100, RateLimiter.cap(100, 200));
+		assertEquals(0, RateLimiter.cap(0, 0));
+	}
+}